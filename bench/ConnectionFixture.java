@@ -0,0 +1,72 @@
+import benchmarks.Fixture;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+
+/**
+ * ConnectionThread over a loopback socket, whose other end is read on the same thread
+ */
+public class ConnectionFixture implements Fixture {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * STORE_DEDUP of a 1 MiB file, with its 128 chunk hashes
+     */
+    private final String storeDedupMessage;
+
+    private final Socket near;
+    private final Socket far;
+    private final ConnectionThread connection;
+    private final BufferedReader farIn;
+
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    public ConnectionFixture() throws IOException {
+        StringBuilder message = new StringBuilder(Protocol.STORE_DEDUP_TOKEN + " file " + (128 * 8192));
+        for (int i = 0; i < 128; i++) {
+            message.append(" ").append(Chunker.hash(new byte[]{(byte) i}, 1)).append(":8192");
+        }
+        storeDedupMessage = message.toString();
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            near = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            far = server.accept();
+        }
+        connection = new ConnectionThread(near, new BufferedReader(new InputStreamReader(near.getInputStream())),
+                new PrintWriter(near.getOutputStream(), true));
+        farIn = new BufferedReader(new InputStreamReader(far.getInputStream()));
+    }
+
+    @Override
+    public Callable<?> operation(String name) {
+        return switch (name) {
+            // a protocol line, as between the Controller and a dstore
+            case "sendLine" -> () -> {
+                connection.communicate(Protocol.STORE_ACK_TOKEN + " file42", false);
+                return farIn.readLine();
+            };
+            // a chunk of file content, as in a load
+            case "sendChunk" -> () -> {
+                connection.writeData(chunk, 0, CHUNK_SIZE);
+                return far.getInputStream().readNBytes(chunk, 0, CHUNK_SIZE);
+            };
+            case "parseStore" -> () -> new Dstore.StoreThread(
+                    new Message(Protocol.STORE_CHAIN_TOKEN + " file42 1048576 5001 5002", connection));
+            case "parseStoreDedup" -> () -> new Dstore.DedupStoreThread(new Message(storeDedupMessage, connection));
+            default -> throw new IllegalArgumentException("Unknown operation " + name);
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        near.close();
+        far.close();
+    }
+}
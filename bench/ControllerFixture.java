@@ -0,0 +1,92 @@
+import benchmarks.Fixture;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Controller with files spread over the dstores (each file on r = 3 of them). The dstores and the client are not
+ * connected to anything: whatever the Controller sends them is discarded, and so is what it prints, so only the
+ * Controller's own work is measured.
+ */
+public class ControllerFixture implements Fixture {
+
+    private final ConnectionThread client;
+
+    /**
+     * Active dstore storing no files, which removeDstore removes and adds back
+     */
+    private final NetworkController.DstoreThread spare;
+
+    public ControllerFixture(int files, int dstores) {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Controller.r = 3;
+        Controller.timeout = 1000;
+        Controller.index.clear();
+        Controller.activeDstores.clear();
+
+        List<NetworkController.DstoreThread> dstoreThreads = new ArrayList<>();
+        for (int i = 0; i < dstores; i++) {
+            dstoreThreads.add(newDstore(5000 + i));
+        }
+        dstoreThreads.forEach(Controller::addDstore);
+
+        for (int i = 0; i < files; i++) {
+            ArrayList<NetworkController.DstoreThread> holders = new ArrayList<>();
+            for (int j = 0; j < Controller.r; j++) {
+                holders.add(dstoreThreads.get((i + j) % dstores));
+            }
+            Controller.index.put("file" + i, new FileProperties(1024, FileProperties.FileStatus.STORE_COMPLETE, holders));
+        }
+
+        spare = newDstore(4999);
+        Controller.addDstore(spare);
+
+        client = new ConnectionThread(new Socket(), null, new PrintWriter(OutputStream.nullOutputStream()));
+    }
+
+    private static NetworkController.DstoreThread newDstore(int port) {
+        return new NetworkController.DstoreThread(
+                new SocketTransport(new Socket(), null, new PrintWriter(OutputStream.nullOutputStream())),
+                port, new FairTaskQueue());
+    }
+
+    @Override
+    public Callable<?> operation(String name) {
+        return switch (name) {
+            case "getRActiveDstoresSorted" -> () -> Controller.getRActiveDstoresSorted(1024);
+            case "listOp" -> () -> {
+                Controller.listOp(new Message(Protocol.LIST_TOKEN, client));
+                return null;
+            };
+            // walks the whole index looking for the spare dstore, which holds no files, so nothing changes between calls
+            case "removeDstore" -> () -> {
+                Controller.removeDstore(spare);
+                Controller.addDstore(spare);
+                return null;
+            };
+            case "dispatchLoad" -> dispatch(Protocol.LOAD_TOKEN + " file42");
+            case "dispatchLocate" -> dispatch(Protocol.LOCATE_TOKEN + " file42");
+            default -> throw new IllegalArgumentException("Unknown operation " + name);
+        };
+    }
+
+    private Callable<?> dispatch(String content) {
+        return () -> {
+            Controller.handleMessage(new Message(content, client));
+            return null;
+        };
+    }
+
+    @Override
+    public void close() {
+        Controller.index.clear();
+        Controller.activeDstores.clear();
+        Controller.fileIndexToBeLoad.clear();
+    }
+}
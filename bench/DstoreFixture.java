@@ -0,0 +1,115 @@
+import benchmarks.Fixture;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Dstore with a temporary folder, storing and loading over a new loopback connection each time, with the client's side
+ * of the transfer running on another thread. Stores are not flushed to disk (durability NONE), so they measure the
+ * dstore's copying rather than the disk.
+ */
+public class DstoreFixture implements Fixture {
+
+    private final int size;
+    private final byte[] data;
+
+    private final Path folder;
+    private final ServerSocket server;
+    private final ExecutorService client = Executors.newSingleThreadExecutor();
+
+    /**
+     * Client's end of the transfer
+     */
+    private Socket clientSocket;
+
+    /**
+     * Dstore's end of the transfer
+     */
+    private ConnectionThread connection;
+
+    public DstoreFixture(int size) throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        folder = Files.createTempDirectory("dstore-bench");
+        Dstore.fileFolder = folder.toString();
+        Dstore.chunkStore = new ChunkStore(Dstore.fileFolder);
+        Dstore.durability = new Durability(Durability.Mode.NONE, 5);
+        Dstore.setDstoreListener(new DstoreListener() {
+            @Override
+            public void fileStored(String fileName) {
+            }
+
+            @Override
+            public void fileRemoved(String fileName) {
+            }
+
+            @Override
+            public void errorFileDoesNotExist(String fileName) {
+            }
+        });
+        Files.createDirectories(Dstore.compressedFile("").toPath());
+
+        this.size = size;
+        data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        Files.write(folder.resolve("loaded"), data);
+
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @Override
+    public void beforeInvocation() throws IOException {
+        clientSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        Socket socket = server.accept();
+        connection = new ConnectionThread(socket, new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                new PrintWriter(socket.getOutputStream(), true));
+    }
+
+    @Override
+    public void afterInvocation() throws IOException {
+        clientSocket.close();
+        connection.closeConnection();
+        Files.deleteIfExists(folder.resolve("stored"));
+        Dstore.fileSizes.remove("stored");
+    }
+
+    @Override
+    public Callable<?> operation(String name) {
+        return switch (name) {
+            case "store" -> () -> {
+                // the ACK fits in the socket's buffer, so the client can send the content without waiting for it
+                Future<?> upload = client.submit(() -> {
+                    clientSocket.getOutputStream().write(data);
+                    return null;
+                });
+
+                new Dstore.StoreThread(new Message(Protocol.STORE_TOKEN + " stored " + size, connection)).run();
+                return upload.get();
+            };
+            case "load" -> () -> {
+                Future<Long> download = client.submit(
+                        () -> clientSocket.getInputStream().transferTo(OutputStream.nullOutputStream()));
+
+                Dstore.load(new Message(Protocol.LOAD_DATA_TOKEN + " loaded", connection));
+                return download.get();
+            };
+            default -> throw new IllegalArgumentException("Unknown operation " + name);
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.shutdownNow();
+        server.close();
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
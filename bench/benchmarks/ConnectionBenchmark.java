@@ -0,0 +1,58 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending and receiving through a ConnectionThread, and parsing the messages received (see ConnectionFixture)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionBenchmark {
+
+    private Fixture fixture;
+    private Callable<?> sendLine;
+    private Callable<?> sendChunk;
+    private Callable<?> parseStore;
+    private Callable<?> parseStoreDedup;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = Fixture.create("ConnectionFixture");
+        sendLine = fixture.operation("sendLine");
+        sendChunk = fixture.operation("sendChunk");
+        parseStore = fixture.operation("parseStore");
+        parseStoreDedup = fixture.operation("parseStoreDedup");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object sendLine() throws Exception {
+        return sendLine.call();
+    }
+
+    @Benchmark
+    public Object sendChunk() throws Exception {
+        return sendChunk.call();
+    }
+
+    @Benchmark
+    public Object parseStore() throws Exception {
+        return parseStore.call();
+    }
+
+    @Benchmark
+    public Object parseStoreDedup() throws Exception {
+        return parseStoreDedup.call();
+    }
+}
@@ -0,0 +1,74 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller operations with the index holding a given number of files (see ControllerFixture)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ControllerBenchmark {
+
+    /**
+     * Files in the index. 10^7 of them need most of the 4 GB heap the benchmark is forked with.
+     */
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int files;
+
+    @Param({"10"})
+    public int dstores;
+
+    private Fixture fixture;
+    private Callable<?> getRActiveDstoresSorted;
+    private Callable<?> listOp;
+    private Callable<?> removeDstore;
+    private Callable<?> dispatchLoad;
+    private Callable<?> dispatchLocate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = Fixture.create("ControllerFixture", files, dstores);
+        getRActiveDstoresSorted = fixture.operation("getRActiveDstoresSorted");
+        listOp = fixture.operation("listOp");
+        removeDstore = fixture.operation("removeDstore");
+        dispatchLoad = fixture.operation("dispatchLoad");
+        dispatchLocate = fixture.operation("dispatchLocate");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object getRActiveDstoresSorted() throws Exception {
+        return getRActiveDstoresSorted.call();
+    }
+
+    @Benchmark
+    public Object listOp() throws Exception {
+        return listOp.call();
+    }
+
+    @Benchmark
+    public Object removeDstore() throws Exception {
+        return removeDstore.call();
+    }
+
+    @Benchmark
+    public Object dispatchLoad() throws Exception {
+        return dispatchLoad.call();
+    }
+
+    @Benchmark
+    public Object dispatchLocate() throws Exception {
+        return dispatchLocate.call();
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing and loading a file of a given size through a Dstore (see DstoreFixture)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DstoreBenchmark {
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private Fixture fixture;
+    private Callable<?> store;
+    private Callable<?> load;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = Fixture.create("DstoreFixture", size);
+        store = fixture.operation("store");
+        load = fixture.operation("load");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void beforeInvocation() throws Exception {
+        fixture.beforeInvocation();
+    }
+
+    @TearDown(Level.Invocation)
+    public void afterInvocation() throws Exception {
+        fixture.afterInvocation();
+    }
+
+    @Benchmark
+    public Object store() throws Exception {
+        return store.call();
+    }
+
+    @Benchmark
+    public Object load() throws Exception {
+        return load.call();
+    }
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Sets up and runs the operations measured by a benchmark. JMH does not accept benchmarks in the default package, and
+ * classes in the default package (i.e. the whole of src) can't be used from any other, so the benchmarks only drive
+ * fixtures, which are in the default package and found by name.
+ */
+public interface Fixture {
+
+    /**
+     * @return the operation with the given name, to be called once per benchmark invocation
+     */
+    Callable<?> operation(String name);
+
+    /**
+     * Run before each invocation, not measured
+     */
+    default void beforeInvocation() throws Exception {
+    }
+
+    /**
+     * Run after each invocation, not measured
+     */
+    default void afterInvocation() throws Exception {
+    }
+
+    default void close() throws Exception {
+    }
+
+    /**
+     * @param className fixture class, which must have a constructor taking params.length ints
+     */
+    static Fixture create(String className, int... params) throws Exception {
+        Class<?>[] types = new Class<?>[params.length];
+        Arrays.fill(types, int.class);
+        Object[] args = Arrays.stream(params).boxed().toArray();
+
+        return (Fixture) Class.forName(className).getDeclaredConstructor(types).newInstance(args);
+    }
+}
@@ -0,0 +1,898 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client whose operations return straight away with a CompletableFuture, so that a caller can have thousands of them
+ * in flight without a thread of its own for each.
+ * <p>
+ * The Controller answers the requests on a connection in order and without saying which request an answer is for,
+ * so a connection can only carry one operation at a time. Connections are kept in a pool of at most maxConnections
+ * and reused; operations beyond that wait for a connection without holding a thread. A connection is only closed when
+ * something went wrong on it (e.g. a reply did not arrive in time, so it might still arrive later).
+ * <p>
+ * Uploads to the dstores of a STORE_TO are done in parallel. Dstores close their connection at the end of each
+ * transfer, so a new one is opened for every transfer. A store completes as soon as the Controller says STORE_COMPLETE,
+ * which it may do once only its write quorum of dstores have the file, and the other uploads finish in the background.
+ * <p>
+ * With a LocationCache, loads of files whose location is cached go straight to their dstores, without a round trip to
+ * the Controller. The client then keeps one more connection open, subscribed to the Controller's invalidations.
+ * <p>
+ * With a HedgePolicy, a load that is slow to start is repeated against another replica, and the first one to finish
+ * is kept. Loads then ask the Controller for every replica with LOCATE, rather than one at a time with LOAD.
+ * <p>
+ * When the files are partitioned between several Controllers (see Partitions), there is a pool of connections for
+ * each of them, and every operation goes to the Controller in charge of its file. The client only needs the port of
+ * one of them: it learns the partition map the first time it is redirected, or when it lists the files, which asks
+ * every Controller.
+ * <p>
+ * If cport is a FollowerController rather than one of the Controllers, loads and lists are sent to it, and only
+ * stores and removes go to the Controllers.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    /**
+     * Error replied by the Controller, e.g. ERROR_FILE_DOES_NOT_EXIST
+     */
+    public static class ControllerError extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String token;
+
+        public ControllerError(String token, String request) {
+            super("Controller replied " + token + " to " + request);
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    /**
+     * REDIRECT port reply, from a Controller that is not in charge of the file of a request
+     */
+    public static class Redirected extends ControllerError {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int port;
+
+        public Redirected(int port, String request) {
+            super(Protocol.REDIRECT_TOKEN, request);
+            this.port = port;
+        }
+
+        public int getPort() {
+            return port;
+        }
+    }
+
+    private interface Operation<T> {
+        T run(ControllerConnection connection) throws IOException;
+    }
+
+    /**
+     * Sends the content of a file to one dstore of a STORE_TO
+     */
+    private interface Upload {
+        void to(int port) throws IOException;
+    }
+
+    private final int cport;
+    private final int timeout;
+
+    /**
+     * Controller in charge of each file, as last heard from a Controller
+     */
+    private volatile Partitions partitions;
+    private final int maxConnections;
+
+    /**
+     * Where recently loaded files are, or null to always ask the Controller
+     */
+    private final LocationCache cache;
+
+    /**
+     * When to hedge loads, or null not to
+     */
+    private final HedgePolicy hedgePolicy;
+
+    /**
+     * Runs the operations and the transfers. Threads are only busy while data is being sent or received.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "async-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Connections to each Controller, by port
+     */
+    private final ConcurrentHashMap<Integer, Pool> pools = new ConcurrentHashMap<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param cport Controller's port
+     * @param timeout how long to wait (in ms) for each reply from the Controller or a dstore
+     * @param maxConnections maximum number of connections to the Controller, i.e. of operations running at once
+     */
+    public AsyncClient(int cport, int timeout, int maxConnections) {
+        this(cport, timeout, maxConnections, null);
+    }
+
+    /**
+     * @param cport Controller's port
+     * @param timeout how long to wait (in ms) for each reply from the Controller or a dstore
+     * @param maxConnections maximum number of connections to the Controller, i.e. of operations running at once
+     * @param cache where to remember the location of the files loaded, or null not to
+     */
+    public AsyncClient(int cport, int timeout, int maxConnections, LocationCache cache) {
+        this(cport, timeout, maxConnections, cache, null);
+    }
+
+    /**
+     * @param cport Controller's port
+     * @param timeout how long to wait (in ms) for each reply from the Controller or a dstore
+     * @param maxConnections maximum number of connections to each Controller, i.e. of operations running at once on it
+     * @param cache where to remember the location of the files loaded, or null not to
+     * @param hedgePolicy when to repeat a slow load against another replica, or null not to
+     */
+    public AsyncClient(int cport, int timeout, int maxConnections, LocationCache cache, HedgePolicy hedgePolicy) {
+        this.cport = cport;
+        this.timeout = timeout;
+        this.maxConnections = maxConnections;
+        this.cache = cache;
+        this.hedgePolicy = hedgePolicy;
+        this.partitions = new Partitions(cport);
+
+        // subscribe to the invalidations straight away, so none are missed between the first loads
+        pool(cport);
+    }
+
+    /**
+     * Stores a file, uploading it to every dstore the Controller chooses at the same time. Some of the uploads may
+     * fail, as long as enough of them succeed for the Controller to confirm the store.
+     * @return completes once the Controller confirms the store with STORE_COMPLETE, or fails if it doesn't in time or
+     * every upload failed
+     */
+    public CompletableFuture<Void> store(String fileName, byte[] data) {
+        return store(fileName, data.length, port -> ClientTransfers.store(port, fileName, data, timeout));
+    }
+
+    /**
+     * Stores a file from disk like store(fileName, data), reading it as it is sent to each dstore, so that large files
+     * are never held in memory
+     * @param file file to store, which must not change until the store completes
+     */
+    public CompletableFuture<Void> store(String fileName, Path file) {
+        long fileSize;
+        try {
+            fileSize = Files.size(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return store(fileName, fileSize, port -> ClientTransfers.store(port, fileName, file, timeout));
+    }
+
+    private CompletableFuture<Void> store(String fileName, long fileSize, Upload upload) {
+        return withConnection(fileName, connection -> {
+            String request = Protocol.STORE_TOKEN + " " + fileName + " " + fileSize;
+            String[] reply = connection.request(request).split(" ");
+            if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+                throw new ControllerError(reply[0], request);
+            }
+
+            // the client doesn't know the write quorum, so it leaves it to the Controller to say when there are enough
+            // uploads, and only gives up early if none of them can succeed any more
+            int uploads = reply.length - 1;
+            AtomicInteger failed = new AtomicInteger();
+            CompletableFuture<Void> allFailed = new CompletableFuture<>();
+            for (int i = 1; i < reply.length; i++) {
+                int port = Integer.parseInt(reply[i]);
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        upload.to(port);
+                    } catch (IOException e) {
+                        System.err.println("Could not upload " + fileName + " to dstore " + port + ": "
+                                + e.getMessage());
+                        if (failed.incrementAndGet() == uploads) {
+                            allFailed.complete(null);
+                        }
+                    }
+                }, executor);
+            }
+
+            CompletableFuture<String> read = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return connection.read();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            await(CompletableFuture.anyOf(read, allFailed), "store " + fileName);
+            if (!read.isDone()) {
+                // the connection is closed as the operation failed, which stops the read
+                throw new IOException("Could not upload " + fileName + " to any of the dstores");
+            }
+
+            String complete = read.join();
+            if (!Protocol.STORE_COMPLETE_TOKEN.equals(complete)) {
+                throw new IOException("Expected " + Protocol.STORE_COMPLETE_TOKEN + " for " + fileName + " but got "
+                        + complete);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Loads a file. If its location is cached, it is loaded straight from its dstores, and only if none of them has it
+     * is the Controller asked. Otherwise the Controller is asked for another dstore with RELOAD every time one fails.
+     * @return the content of the file
+     */
+    public CompletableFuture<byte[]> load(String fileName) {
+        LocationCache.Location cached = (cache != null) ? cache.get(fileName) : null;
+        if (cached == null) {
+            return loadThroughController(fileName);
+        }
+
+        return CompletableFuture
+                .supplyAsync(() -> loadFrom(cached.ports(), fileName, cached.fileSize()), executor)
+                .thenCompose(data -> {
+                    if (data != null) {
+                        return CompletableFuture.completedFuture(data);
+                    }
+                    // the file was removed or moved since it was cached
+                    cache.invalidate(fileName);
+                    return loadThroughController(fileName);
+                });
+    }
+
+    /**
+     * Loads a file to disk, asking the Controller for every replica with LOCATE and fetching a range from each of them
+     * at the same time (see ClientTransfers.loadParallel). Replicated files are written as they arrive rather than held
+     * in memory, while erasure coded ones are rebuilt in memory first.
+     * @param target where to write the file, which is replaced if it exists
+     * @return the size of the file
+     */
+    public CompletableFuture<Long> load(String fileName, Path target) {
+        return withConnection(fileName, true, connection -> {
+            String request = Protocol.LOCATE_TOKEN + " " + fileName;
+            String[] reply = connection.request(request).split(" ");
+
+            if (reply[0].equals(Protocol.LOAD_EC_FROM_TOKEN)) {
+                byte[] data = loadErasureCoded(reply, fileName);
+                Files.write(target, data);
+                return (long) data.length;
+            }
+            if (!reply[0].equals(Protocol.LOCATIONS_TOKEN)) {
+                throw new ControllerError(reply[0], request);
+            }
+
+            // LOCATIONS filesize version port1 port2 ...
+            long fileSize = Long.parseLong(reply[1]);
+            List<Integer> ports = new ArrayList<>();
+            for (int i = 3; i < reply.length; i++) {
+                ports.add(Integer.parseInt(reply[i]));
+            }
+            ClientTransfers.loadParallel(ports, fileName, fileSize, target, timeout);
+            return fileSize;
+        });
+    }
+
+    private CompletableFuture<byte[]> loadThroughController(String fileName) {
+        if ((cache != null) || (hedgePolicy != null)) {
+            return withConnection(fileName, true, connection -> locateAndLoad(connection, fileName));
+        }
+
+        return withConnection(fileName, true, connection -> {
+            String request = Protocol.LOAD_TOKEN + " " + fileName;
+
+            while (true) {
+                String[] reply = connection.request(request).split(" ");
+                if (reply[0].equals(Protocol.LOAD_EC_FROM_TOKEN)) {
+                    return loadErasureCoded(reply, fileName);
+                }
+                if (!reply[0].equals(Protocol.LOAD_FROM_TOKEN)) {
+                    throw new ControllerError(reply[0], request);
+                }
+
+                byte[] data = loadFrom(List.of(Integer.parseInt(reply[1])), fileName, Integer.parseInt(reply[2]));
+                if (data != null) {
+                    return data;
+                }
+                request = Protocol.RELOAD_TOKEN + " " + fileName;
+            }
+        });
+    }
+
+    /**
+     * Asks the Controller where a file is with LOCATE, caches it and loads the file from the dstores holding it
+     */
+    private byte[] locateAndLoad(ControllerConnection connection, String fileName) throws IOException {
+        String request = Protocol.LOCATE_TOKEN + " " + fileName;
+        String[] reply = connection.request(request).split(" ");
+
+        if (reply[0].equals(Protocol.LOAD_EC_FROM_TOKEN)) {
+            // not worth caching, as any shard may be missing
+            return loadErasureCoded(reply, fileName);
+        }
+
+        if (!reply[0].equals(Protocol.LOCATIONS_TOKEN)) {
+            throw new ControllerError(reply[0], request);
+        }
+
+        // LOCATIONS filesize version port1 port2 ...
+        int fileSize = Integer.parseInt(reply[1]);
+        long version = Long.parseLong(reply[2]);
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 3; i < reply.length; i++) {
+            ports.add(Integer.parseInt(reply[i]));
+        }
+
+        byte[] data = loadFrom(ports, fileName, fileSize);
+        if (data == null) {
+            throw new IOException("Could not load " + fileName + " from any of the dstores " + ports);
+        }
+
+        if (cache != null) {
+            cache.put(fileName, fileSize, version, ports);
+        }
+        return data;
+    }
+
+    /**
+     * Loads an erasure coded file from the shards the Controller gave
+     * @param reply LOAD_EC_FROM filesize k m shard:port ... reply, split on spaces
+     */
+    private byte[] loadErasureCoded(String[] reply, String fileName) throws IOException {
+        Map<Integer, Integer> shardPorts = new HashMap<>();
+        for (int i = 4; i < reply.length; i++) {
+            String[] shard = reply[i].split(":");
+            shardPorts.put(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+        }
+        return ClientTransfers.loadErasureCoded(shardPorts, fileName, Integer.parseInt(reply[1]),
+                Integer.parseInt(reply[2]), Integer.parseInt(reply[3]), timeout);
+    }
+
+    /**
+     * Loads a whole file from the dstores holding it, moving on to the next one when one fails. If the first one has
+     * not started sending the file when the hedge policy says so, the next one is asked as well, and the first to
+     * finish is kept.
+     * @return the content of the file, or null if none of the dstores could send it
+     */
+    private byte[] loadFrom(List<Integer> ports, String fileName, int fileSize) {
+        ReplicaLoad load = new ReplicaLoad(ports, fileName, fileSize);
+        CompletableFuture<Void> started = load.startNext();
+
+        if ((hedgePolicy != null) && (ports.size() > 1)) {
+            hedgePolicy.loadStarted();
+            try {
+                started.get(hedgePolicy.delayMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (hedgePolicy.tryHedge()) {
+                    load.startNext();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                return null;
+            }
+        }
+
+        try {
+            return load.result.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A load of a file from a list of replicas, with possibly more than one of them sending it at the same time.
+     * Every replica writes to its own buffer, and the first complete one is the result. The others stop as soon as
+     * they receive anything else.
+     */
+    private class ReplicaLoad {
+
+        private final Iterator<Integer> candidates;
+        private final String fileName;
+        private final int fileSize;
+
+        /**
+         * Content of the file, or null if no replica could send it
+         */
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        /**
+         * Replicas sending the file right now
+         */
+        private int running = 0;
+
+        public ReplicaLoad(List<Integer> ports, String fileName, int fileSize) {
+            this.candidates = ports.iterator();
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * Starts loading from the next replica
+         * @return completes when the replica sends its first byte or fails, or null if there is no replica left
+         */
+        public synchronized CompletableFuture<Void> startNext() {
+            if (result.isDone() || !candidates.hasNext()) {
+                return null;
+            }
+
+            int port = candidates.next();
+            running++;
+
+            CompletableFuture<Void> started = new CompletableFuture<>();
+            long startTime = System.currentTimeMillis();
+
+            executor.execute(() -> {
+                byte[] data = new byte[fileSize];
+                long received = ClientTransfers.loadRange(port, fileName, 0, fileSize, (position, buffer, len) -> {
+                    if (result.isDone()) {
+                        throw new IOException("Another replica sent " + fileName + " first");
+                    }
+                    if (started.complete(null) && (hedgePolicy != null)) {
+                        hedgePolicy.firstByte(System.currentTimeMillis() - startTime);
+                    }
+                    System.arraycopy(buffer, 0, data, (int) position, len);
+                }, timeout);
+                started.complete(null);
+
+                if (received == fileSize) {
+                    result.complete(data);
+                } else {
+                    failed();
+                }
+            });
+
+            return started;
+        }
+
+        private void failed() {
+            synchronized (this) {
+                running--;
+            }
+            if (startNext() == null) {
+                synchronized (this) {
+                    if (running == 0) {
+                        result.complete(null);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return completes once the Controller confirms the removal with REMOVE_COMPLETE
+     */
+    public CompletableFuture<Void> remove(String fileName) {
+        return withConnection(fileName, connection -> {
+            String request = Protocol.REMOVE_TOKEN + " " + fileName;
+            String reply = connection.request(request);
+            if (!Protocol.REMOVE_COMPLETE_TOKEN.equals(reply)) {
+                throw new ControllerError(reply, request);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Asks the Controller at cport for the partition map and the files it has, then every other Controller for theirs.
+     * A follower has the files of every partition, unless it is too far behind, in which case every Controller is
+     * asked.
+     * @return names of the files stored
+     */
+    public CompletableFuture<List<String>> list() {
+        return pool(cport).withConnection(connection -> {
+            partitions = Partitions.fromReply(connection.request(Protocol.PARTITIONS_TOKEN));
+            return listFrom(connection);
+        }).thenCompose(files -> {
+            if (partitions.indexOf(cport) < 0) {
+                return CompletableFuture.completedFuture(files);
+            }
+            return listPartitions(files, cport);
+        }).exceptionallyCompose(e -> {
+            Throwable cause = ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+            if (!(cause instanceof Redirected)) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return listPartitions(List.of(), -1);
+        });
+    }
+
+    /**
+     * Adds the files of every partition but the one at a port to a list
+     */
+    private CompletableFuture<List<String>> listPartitions(List<String> files, int except) {
+        Partitions current = partitions;
+        List<CompletableFuture<List<String>>> lists = new ArrayList<>(List.of(CompletableFuture.completedFuture(files)));
+        for (int i = 0; i < current.size(); i++) {
+            if (current.getPort(i) != except) {
+                lists.add(pool(current.getPort(i)).withConnection(AsyncClient::listFrom));
+            }
+        }
+
+        return CompletableFuture.allOf(lists.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<String> all = new ArrayList<>();
+            lists.forEach(list -> all.addAll(list.join()));
+            return all;
+        });
+    }
+
+    /**
+     * Lists every file whose name starts with a prefix, a page at a time, so no reply has more than pageSize files
+     */
+    public CompletableFuture<List<String>> list(String prefix, int pageSize) {
+        return listPages(new ArrayList<>(), prefix, null, pageSize);
+    }
+
+    private CompletableFuture<List<String>> listPages(List<String> files, String prefix, String after, int pageSize) {
+        return listPage(prefix, after, pageSize).thenCompose(page -> {
+            files.addAll(page.files());
+            if (!page.more() || page.files().isEmpty()) {
+                return CompletableFuture.completedFuture(files);
+            }
+            return listPages(files, prefix, page.last(), pageSize);
+        });
+    }
+
+    /**
+     * Asks for up to limit of the files whose name starts with a prefix, in name order, after the last file of the
+     * previous page. With several partitions, each of them gives its page and they are merged (see ListPage.merge).
+     * @param after last file of the previous page, or null for the first page
+     */
+    public CompletableFuture<ListPage.Page> listPage(String prefix, String after, int limit) {
+        ListPage request = new ListPage(limit, prefix, after);
+        return pool(cport).withConnection(connection -> {
+            partitions = Partitions.fromReply(connection.request(Protocol.PARTITIONS_TOKEN));
+            return pageFrom(connection, request);
+        }).thenCompose(page -> {
+            if (partitions.indexOf(cport) < 0) {
+                return CompletableFuture.completedFuture(page);
+            }
+            return pagePartitions(request, page, cport);
+        }).exceptionallyCompose(e -> {
+            Throwable cause = ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+            if (!(cause instanceof Redirected)) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return pagePartitions(request, null, -1);
+        });
+    }
+
+    /**
+     * Merges a page with the same page of every partition but the one at a port
+     */
+    private CompletableFuture<ListPage.Page> pagePartitions(ListPage request, ListPage.Page page, int except) {
+        Partitions current = partitions;
+        List<CompletableFuture<ListPage.Page>> pages = new ArrayList<>();
+        if (page != null) {
+            pages.add(CompletableFuture.completedFuture(page));
+        }
+        for (int i = 0; i < current.size(); i++) {
+            if (current.getPort(i) != except) {
+                pages.add(pool(current.getPort(i)).withConnection(connection -> pageFrom(connection, request)));
+            }
+        }
+
+        return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> request.merge(pages.stream().map(CompletableFuture::join).toList()));
+    }
+
+    private static ListPage.Page pageFrom(ControllerConnection connection, ListPage request) throws IOException {
+        String reply = connection.request(request.toRequest());
+        if ((reply == null) || !reply.startsWith(Protocol.LIST_PAGE_TOKEN)) {
+            throw new ControllerError(reply, request.toRequest());
+        }
+        return ListPage.fromReply(reply);
+    }
+
+    private static List<String> listFrom(ControllerConnection connection) throws IOException {
+        String reply = connection.request(Protocol.LIST_TOKEN);
+        if ((reply == null) || !reply.startsWith(Protocol.LIST_TOKEN)) {
+            throw new ControllerError(reply, Protocol.LIST_TOKEN);
+        }
+
+        String files = reply.substring(Protocol.LIST_TOKEN.length()).trim();
+        return files.isEmpty() ? List.of() : List.of(files.split(" "));
+    }
+
+    /**
+     * Closes the idle connections and fails the operations still waiting for one. Operations already running finish,
+     * and their connections are closed afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        pools.values().forEach(Pool::close);
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> withConnection(String fileName, Operation<T> operation) {
+        return withConnection(fileName, false, operation);
+    }
+
+    /**
+     * Runs an operation on a connection to the Controller in charge of a file, or to the follower at cport if it only
+     * reads. If that Controller says another one is, the partition map is out of date (or was never known): it is asked
+     * for the map, and the operation is run again there.
+     */
+    private <T> CompletableFuture<T> withConnection(String fileName, boolean read, Operation<T> operation) {
+        Partitions current = partitions;
+        int port = (read && (current.indexOf(cport) < 0)) ? cport : current.controllerFor(fileName);
+
+        return pool(port).withConnection(operation).exceptionallyCompose(e -> {
+            Throwable cause = ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+            if (!(cause instanceof Redirected redirected)) {
+                return CompletableFuture.failedFuture(e);
+            }
+
+            return pool(redirected.getPort()).withConnection(connection -> {
+                partitions = Partitions.fromReply(connection.request(Protocol.PARTITIONS_TOKEN));
+                return operation.run(connection);
+            });
+        });
+    }
+
+    private Pool pool(int port) {
+        return pools.computeIfAbsent(port, Pool::new);
+    }
+
+    /**
+     * Connections to one Controller
+     */
+    private class Pool {
+
+        private final int port;
+
+        /**
+         * Connections that are open and not in use
+         */
+        private final ArrayDeque<ControllerConnection> idle = new ArrayDeque<>();
+
+        /**
+         * Operations waiting for a connection, in the order they were started
+         */
+        private final ArrayDeque<CompletableFuture<ControllerConnection>> waiting = new ArrayDeque<>();
+
+        /**
+         * Connections that are open or being opened, in use or not
+         */
+        private int openConnections = 0;
+
+        /**
+         * Connection receiving INVALIDATE messages for the cache, or null while it is not connected
+         */
+        private volatile ControllerConnection subscription;
+
+        public Pool(int port) {
+            this.port = port;
+
+            if (cache != null) {
+                Thread invalidations = new Thread(this::followInvalidations, "location-invalidations-" + port);
+                invalidations.setDaemon(true);
+                invalidations.start();
+            }
+        }
+
+        /**
+         * Runs an operation on a connection from the pool as soon as one is free, then gives it back
+         */
+        public <T> CompletableFuture<T> withConnection(Operation<T> operation) {
+            return acquire().thenApplyAsync(connection -> {
+                boolean reusable = false;
+                try {
+                    T result = operation.run(connection);
+                    reusable = true;
+                    return result;
+                } catch (ControllerError e) {
+                    // the Controller answered, so the connection is still in a known state
+                    reusable = true;
+                    throw new CompletionException(e);
+                } catch (IOException | RuntimeException e) {
+                    throw (e instanceof CompletionException) ? (CompletionException) e : new CompletionException(e);
+                } finally {
+                    release(connection, reusable);
+                }
+            }, executor);
+        }
+
+        /**
+         * Closes the idle connections and fails the operations still waiting for one
+         */
+        public void close() {
+            List<ControllerConnection> toClose;
+            List<CompletableFuture<ControllerConnection>> toFail;
+
+            synchronized (this) {
+                toClose = new ArrayList<>(idle);
+                toFail = new ArrayList<>(waiting);
+                idle.clear();
+                waiting.clear();
+            }
+
+            toClose.forEach(ControllerConnection::close);
+            if (subscription != null) {
+                subscription.close();
+            }
+            toFail.forEach(waiter -> waiter.completeExceptionally(new IOException("Client closed")));
+        }
+
+        private CompletableFuture<ControllerConnection> acquire() {
+            synchronized (this) {
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IOException("Client closed"));
+                }
+                if (!idle.isEmpty()) {
+                    return CompletableFuture.completedFuture(idle.pop());
+                }
+                if (openConnections >= maxConnections) {
+                    CompletableFuture<ControllerConnection> waiter = new CompletableFuture<>();
+                    waiting.add(waiter);
+                    return waiter;
+                }
+                openConnections++;
+            }
+
+            return connect();
+        }
+
+        /**
+         * Hands a connection to the next waiting operation, or keeps it for later. A connection that can't be reused
+         * is closed, and a new one is opened if an operation is waiting.
+         */
+        private void release(ControllerConnection connection, boolean reusable) {
+            CompletableFuture<ControllerConnection> waiter;
+
+            synchronized (this) {
+                if (closed) {
+                    reusable = false;
+                }
+                if (!reusable) {
+                    openConnections--;
+                }
+
+                waiter = waiting.poll();
+                if (waiter == null) {
+                    if (reusable) {
+                        idle.push(connection);
+                    }
+                } else if (!reusable) {
+                    openConnections++;
+                }
+            }
+
+            if (!reusable) {
+                connection.close();
+            }
+
+            if (waiter != null) {
+                if (reusable) {
+                    waiter.complete(connection);
+                } else {
+                    connect().whenComplete((opened, e) -> {
+                        if (e == null) {
+                            waiter.complete(opened);
+                        } else {
+                            waiter.completeExceptionally(e);
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Opens a new connection in the background. The caller must already have counted it in openConnections.
+         */
+        private CompletableFuture<ControllerConnection> connect() {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new ControllerConnection(port, timeout);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        openConnections--;
+                    }
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        }
+
+        /**
+         * Keeps a connection subscribed to the Controller's invalidations, dropping the cached locations they name.
+         * When the connection is lost some invalidations may have been missed, so the whole cache is dropped.
+         */
+        private void followInvalidations() {
+            while (!closed) {
+                try {
+                    ControllerConnection connection = new ControllerConnection(port, 0);
+                    subscription = connection;
+                    connection.send(Protocol.SUBSCRIBE_TOKEN);
+
+                    while (true) {
+                        // INVALIDATE filename version
+                        String[] message = connection.read().split(" ");
+                        if (message[0].equals(Protocol.INVALIDATE_TOKEN)) {
+                            cache.invalidate(message[1], Long.parseLong(message[2]));
+                        }
+                    }
+                } catch (IOException e) {
+                    cache.clear();
+                    subscription = null;
+                }
+
+                try {
+                    Thread.sleep(timeout);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void await(CompletableFuture<?> future, String what) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not " + what, e.getCause());
+        }
+    }
+
+    private static class ControllerConnection {
+
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        public ControllerConnection(int cport, int timeout) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), cport);
+            socket.setSoTimeout(timeout);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        /**
+         * Sends a request and waits for the reply
+         * @throws Redirected if the Controller is not in charge of the file of the request
+         * @throws IOException if the reply does not arrive within the timeout or the connection fails
+         */
+        public String request(String request) throws IOException {
+            send(request);
+            String reply = read();
+
+            if (reply.startsWith(Protocol.REDIRECT_TOKEN + " ")) {
+                throw new Redirected(Integer.parseInt(reply.substring(Protocol.REDIRECT_TOKEN.length() + 1)), request);
+            }
+            return reply;
+        }
+
+        public void send(String message) {
+            out.println(message);
+        }
+
+        public String read() throws IOException {
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new EOFException("Controller closed the connection");
+            }
+            return reply;
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Could not close socket");
+            }
+        }
+    }
+}
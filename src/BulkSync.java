@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Copies a whole directory to the store (push) or the whole store to a directory (pull).
+ * <p>
+ * Usage: java BulkSync cport timeout push|pull directory [parallelism=16] [prefix=]
+ * <p>
+ * Only the difference is copied: files whose name is already in the store are not pushed, and files already in
+ * the directory are not pulled, so running it again after it was interrupted carries on where it stopped. Pulled files
+ * are written to name.part and renamed once complete, so a file in the directory is never half written.
+ * <p>
+ * The store is listed a page at a time with LIST_PAGE. With a prefix, only the files whose name starts with it are
+ * listed and synced, like a directory of the store (e.g. prefix=logs-): pushed files are stored as prefix + name, and
+ * pulled files are written without it.
+ * <p>
+ * Up to parallelism files are transferred at the same time, each over its own Controller connection, so while some
+ * files wait for the Controller (e.g. for STORE_COMPLETE) others are being sent to or received from the dstores. Files
+ * are streamed between the disk and the dstores rather than read or loaded whole, so large files don't have to fit in
+ * memory. Progress is printed every second.
+ * <p>
+ * Files of the store whose name would put them outside the directory (e.g. ../name) are not pulled.
+ */
+public class BulkSync {
+
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * Files listed in each reply from the Controllers
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    private final AsyncClient client;
+    private final Path directory;
+    private final String prefix;
+
+    /**
+     * Transfers in flight
+     */
+    private final Semaphore window;
+    private final int parallelism;
+
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+
+    public BulkSync(AsyncClient client, Path directory, String prefix, int parallelism) {
+        this.client = client;
+        this.directory = directory.toAbsolutePath().normalize();
+        this.prefix = prefix;
+        this.window = new Semaphore(parallelism);
+        this.parallelism = parallelism;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cport = Integer.parseInt(args[0]);
+        int timeout = Integer.parseInt(args[1]);
+        String mode = args[2];
+        Path directory = Path.of(args[3]);
+        int parallelism = 16;
+        String prefix = "";
+
+        // optional settings, given as key=value after the mandatory arguments
+        for (int i = 4; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            switch (option[0]) {
+                case "parallelism" -> parallelism = Integer.parseInt(option[1]);
+                case "prefix" -> prefix = option[1];
+                default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+
+        try (AsyncClient client = new AsyncClient(cport, timeout, parallelism)) {
+            BulkSync sync = new BulkSync(client, directory, prefix, parallelism);
+            switch (mode) {
+                case "push" -> sync.push();
+                case "pull" -> sync.pull();
+                default -> throw new IllegalArgumentException("Unknown mode " + mode + ", expected push or pull");
+            }
+
+            if (sync.filesFailed.get() > 0) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Stores every file of the directory that is not in the store yet
+     */
+    public void push() throws IOException, InterruptedException {
+        Set<String> remote = new HashSet<>(client.list(prefix, PAGE_SIZE).join());
+
+        List<Path> toStore;
+        try (Stream<Path> files = Files.list(directory)) {
+            toStore = files
+                    .filter(Files::isRegularFile)
+                    .filter(file -> isValidName(file.getFileName().toString()))
+                    .filter(file -> !remote.contains(prefix + file.getFileName().toString()))
+                    .toList();
+        }
+
+        run("push", toStore, file -> {
+            String fileName = prefix + file.getFileName().toString();
+            long fileSize;
+            try {
+                fileSize = Files.size(file);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+
+            return client.store(fileName, file).handle((result, e) -> {
+                // stored by an earlier run whose store had not completed when it was listed, or by someone else
+                if ((e != null) && !isError(e, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN)) {
+                    throw new CompletionException(e);
+                }
+                return fileSize;
+            });
+        });
+    }
+
+    /**
+     * Loads every file of the store that is not in the directory yet
+     */
+    public void pull() throws IOException, InterruptedException {
+        Files.createDirectories(directory);
+
+        List<String> toLoad = client.list(prefix, PAGE_SIZE).join().stream()
+                .filter(fileName -> {
+                    if (target(fileName) == null) {
+                        System.err.println("Skipping " + fileName + ", which would be outside " + directory);
+                        return false;
+                    }
+                    return true;
+                })
+                .filter(fileName -> !Files.exists(target(fileName)))
+                .toList();
+
+        run("pull", toLoad, fileName -> {
+            Path target = target(fileName);
+            Path part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+            return client.load(fileName, part).thenApply(fileSize -> {
+                try {
+                    Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                return fileSize;
+            });
+        });
+    }
+
+    private interface Transfer<T> {
+        /**
+         * @return completes with the number of bytes transferred
+         */
+        CompletableFuture<Long> start(T item);
+    }
+
+    /**
+     * Starts a transfer for every item, keeping at most parallelism of them in flight, and waits for all of them
+     */
+    private <T> void run(String what, List<T> items, Transfer<T> transfer) throws InterruptedException {
+        int total = items.size();
+        System.out.println("Starting " + what + " of " + total + " files");
+        long startTime = System.nanoTime();
+
+        Timer progress = new Timer(true);
+        progress.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                report(what, total, startTime);
+            }
+        }, 1000, 1000);
+
+        for (T item : items) {
+            window.acquire();
+            transfer.start(item).whenComplete((bytes, e) -> {
+                if (e == null) {
+                    filesDone.incrementAndGet();
+                    bytesDone.addAndGet(bytes);
+                } else {
+                    filesFailed.incrementAndGet();
+                    System.err.println("Could not " + what + " " + item + ": " + unwrap(e));
+                }
+                window.release();
+            });
+        }
+
+        // wait for the last transfers
+        window.acquire(parallelism);
+        window.release(parallelism);
+
+        progress.cancel();
+        report(what, total, startTime);
+    }
+
+    private void report(String what, int total, long startTime) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+        int done = filesDone.get();
+
+        System.out.printf("%s: %d/%d files (%d failed), %.1f MB/s, %.1f files/s%n", what, done, total,
+                filesFailed.get(), bytesDone.get() / 1e6 / seconds, done / seconds);
+    }
+
+    /**
+     * @return where a file of the store is pulled to, which is its name without the prefix, or null if that is not a
+     * file inside the directory, so that no name in the store can make a pull write anywhere else
+     */
+    private Path target(String fileName) {
+        Path target = directory.resolve(fileName.substring(prefix.length())).normalize();
+        return (target.startsWith(directory) && !target.equals(directory)) ? target : null;
+    }
+
+    /**
+     * @return whether a file can be stored under this name, which can't contain spaces in the text protocol
+     */
+    private static boolean isValidName(String fileName) {
+        if (fileName.contains(" ") || fileName.endsWith(PART_SUFFIX)) {
+            System.err.println("Skipping " + fileName);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isError(Throwable e, String token) {
+        return (unwrap(e) instanceof AsyncClient.ControllerError error) && error.getToken().equals(token);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deduplicated storage on a Dstore. Files stored with STORE_DEDUP are kept as a recipe (the list of their chunks) and
+ * every distinct chunk is only written once, however many files or positions within a file contain it.
+ * <p>
+ * Chunks live in fileFolder/.chunks, named by their SHA-256, and recipes in fileFolder/.recipes, named after the file.
+ * Each chunk has a reference count (one per occurrence in a recipe) and is deleted when it drops to 0.
+ */
+public class ChunkStore {
+
+    private final Path chunkFolder;
+    private final Path recipeFolder;
+
+    /**
+     * Number of references to each chunk that is on disk
+     */
+    private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<>();
+
+    public ChunkStore(String fileFolder) throws IOException {
+        this.chunkFolder = Path.of(fileFolder, ".chunks");
+        this.recipeFolder = Path.of(fileFolder, ".recipes");
+
+        Files.createDirectories(chunkFolder);
+        Files.createDirectories(recipeFolder);
+    }
+
+    /**
+     * Takes a reference to a chunk if it is already stored
+     * @return true if the chunk is stored, false if it has to be sent
+     */
+    public boolean acquire(String hash) {
+        return references.computeIfPresent(hash, (h, count) -> count + 1) != null;
+    }
+
+    public Path getChunkFolder() {
+        return chunkFolder;
+    }
+
+    public Path getRecipeFolder() {
+        return recipeFolder;
+    }
+
+    public Path chunkPath(String hash) {
+        return chunkFolder.resolve(hash);
+    }
+
+    public Path recipePath(String fileName) {
+        return recipeFolder.resolve(fileName);
+    }
+
+    /**
+     * Stores a chunk (unless it is already there) and takes a reference to it
+     * @return whether the chunk had to be written
+     */
+    public boolean add(String hash, byte[] data, int len) throws IOException {
+        boolean[] written = {false};
+
+        try {
+            references.compute(hash, (h, count) -> {
+                if (count != null) {
+                    return count + 1;
+                }
+
+                try {
+                    Files.write(chunkFolder.resolve(h), len == data.length ? data : Arrays.copyOf(data, len));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                written[0] = true;
+                return 1;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return written[0];
+    }
+
+    /**
+     * Drops a reference to a chunk, deleting it once nothing refers to it
+     * @return number of bytes freed on disk
+     */
+    public long release(String hash) {
+        long[] freed = {0};
+
+        references.computeIfPresent(hash, (h, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+
+            try {
+                freed[0] = Files.size(chunkFolder.resolve(h));
+                Files.deleteIfExists(chunkFolder.resolve(h));
+            } catch (IOException e) {
+                System.err.println("Could not delete chunk " + h);
+            }
+            return null;
+        });
+
+        return freed[0];
+    }
+
+    public boolean isReferenced(String hash) {
+        return references.containsKey(hash);
+    }
+
+    /**
+     * Checks a chunk on disk still matches the hash it is named after
+     */
+    public boolean verify(String hash) throws IOException {
+        byte[] data = Files.readAllBytes(chunkFolder.resolve(hash));
+        return Chunker.hash(data, data.length).equals(hash);
+    }
+
+    /**
+     * Takes a reference to every chunk of a recipe found on disk, when the dstore restarts keeping its files
+     * @param available chunks that are on disk
+     * @return size of the file the recipe describes, or -1 if some chunk is not available, in which case no
+     * reference is taken
+     */
+    public long restore(String fileName, Set<String> available) throws IOException {
+        List<String> lines = Files.readAllLines(recipeFolder.resolve(fileName), StandardCharsets.US_ASCII);
+
+        long size = 0;
+        for (String line : lines) {
+            if (!available.contains(line.split(" ")[0])) {
+                return -1;
+            }
+            size += Long.parseLong(line.split(" ")[1]);
+        }
+
+        for (String line : lines) {
+            references.merge(line.split(" ")[0], 1, Integer::sum);
+        }
+        return size;
+    }
+
+    public boolean hasRecipe(String fileName) {
+        return Files.exists(recipeFolder.resolve(fileName));
+    }
+
+    /**
+     * Writes the recipe of a file. The caller must already hold a reference to each of its chunks.
+     * @param hashes hash of each chunk, in order
+     * @param lengths length of each chunk
+     */
+    public void writeRecipe(String fileName, List<String> hashes, List<Integer> lengths) throws IOException {
+        StringBuilder recipe = new StringBuilder();
+        for (int i = 0; i < hashes.size(); i++) {
+            recipe.append(hashes.get(i)).append(" ").append(lengths.get(i)).append("\n");
+        }
+
+        Files.writeString(recipeFolder.resolve(fileName), recipe, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Deletes the recipe of a file and releases its chunks
+     * @return number of bytes freed on disk, or -1 if there was no such recipe
+     */
+    public long remove(String fileName) throws IOException {
+        Path recipe = recipeFolder.resolve(fileName);
+        if (!Files.exists(recipe)) {
+            return -1;
+        }
+
+        List<String> lines = Files.readAllLines(recipe, StandardCharsets.US_ASCII);
+        long freed = Files.size(recipe);
+        Files.delete(recipe);
+
+        for (String line : lines) {
+            freed += release(line.split(" ")[0]);
+        }
+
+        return freed;
+    }
+
+    /**
+     * @return size of the file a recipe describes
+     */
+    public long size(String fileName) throws IOException {
+        long size = 0;
+        for (String line : Files.readAllLines(recipeFolder.resolve(fileName), StandardCharsets.US_ASCII)) {
+            size += Long.parseLong(line.split(" ")[1]);
+        }
+        return size;
+    }
+
+    /**
+     * Opens the content of a deduplicated file, starting at some offset. Chunks are opened one at a time as the stream
+     * reaches them, and the ones that are entirely before the offset are not opened at all.
+     */
+    public InputStream open(String fileName, long offset) throws IOException {
+        List<String> lines = Files.readAllLines(recipeFolder.resolve(fileName), StandardCharsets.US_ASCII);
+
+        int first = 0;
+        long position = 0;
+        while (first < lines.size()) {
+            long length = Long.parseLong(lines.get(first).split(" ")[1]);
+            if (position + length > offset) {
+                break;
+            }
+            position += length;
+            first++;
+        }
+
+        final long skip = offset - position;
+        final int start = first;
+
+        return new SequenceInputStream(new Enumeration<>() {
+            private int next = start;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < lines.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    InputStream chunk = new FileInputStream(chunkFolder.resolve(lines.get(next).split(" ")[0]).toFile());
+                    if (next == start) {
+                        chunk.skipNBytes(skip);
+                    }
+                    next++;
+                    return chunk;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+}
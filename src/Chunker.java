@@ -0,0 +1,93 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-defined chunking with a gear rolling hash. Chunk boundaries depend on the bytes around them rather than on
+ * their offset, so inserting or removing data in a file only changes the chunks around the edit, and near-duplicate
+ * files share most of their chunks.
+ */
+public class Chunker {
+
+    public static final int MIN_CHUNK_SIZE = 2 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * A boundary is declared when these 13 bits of the hash are all 0, which happens on average every 8 KiB. The top
+     * bits are used because they depend on the last 64 bytes, while the bottom ones only depend on the last few.
+     */
+    private static final long BOUNDARY_MASK = ((1L << 13) - 1) << 51;
+
+    /**
+     * Random value for each byte. The seed is fixed: every client must cut chunks in the same places for the dstores to
+     * recognise them.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5eed_c0de_d5c1L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public record Chunk(int offset, int length, String hash) {
+    }
+
+    /**
+     * Splits data into content-defined chunks and hashes each of them with SHA-256
+     */
+    public static List<Chunk> split(byte[] data) {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = sha256();
+
+        int start = 0;
+        while (start < data.length) {
+            int end = boundary(data, start);
+            digest.update(data, start, end - start);
+            chunks.add(new Chunk(start, end - start, HexFormat.of().formatHex(digest.digest())));
+            start = end;
+        }
+
+        return chunks;
+    }
+
+    /**
+     * @return SHA-256 of len bytes of data, in hex
+     */
+    public static String hash(byte[] data, int len) {
+        MessageDigest digest = sha256();
+        digest.update(data, 0, len);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return the end (exclusive) of the chunk starting at start
+     */
+    private static int boundary(byte[] data, int start) {
+        int limit = Math.min(data.length, start + MAX_CHUNK_SIZE);
+        int i = Math.min(limit, start + MIN_CHUNK_SIZE);
+        long hash = 0;
+
+        while (i < limit) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            i++;
+            if ((hash & BOUNDARY_MASK) == 0) {
+                return i;
+            }
+        }
+
+        return limit;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Client side of the data transfers between a client and the Dstores. The Controller is not involved here: these
+ * methods are called once the client knows which dstores to talk to (e.g. after STORE_TO).
+ */
+public class ClientTransfers {
+
+    /**
+     * Files smaller than this are not worth splitting between several dstores
+     */
+    private static final int MIN_RANGE_SIZE = 1024 * 1024;
+
+    /**
+     * Receives the bytes of a ranged load as they arrive
+     */
+    public interface RangeSink {
+        void write(long position, byte[] data, int len) throws IOException;
+    }
+
+    /**
+     * Sends the content of a file once the dstore acknowledged the upload
+     */
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Uploads a file to a single dstore with STORE
+     * @param port dstore's port
+     * @param fileName name of the file
+     * @param data content of the file
+     * @param timeout how long to wait (in ms) for the dstore to answer
+     * @throws IOException if the dstore does not acknowledge the request or the connection fails
+     */
+    public static void store(int port, String fileName, byte[] data, int timeout) throws IOException {
+        upload(port, Protocol.STORE_TOKEN + " " + fileName + " " + data.length, data, timeout);
+    }
+
+    /**
+     * Uploads a file from disk to a single dstore with STORE, reading it as it is sent rather than all at once
+     * @param port dstore's port
+     * @param fileName name of the file in the store
+     * @param file file to upload, which must not change in the meantime
+     * @param timeout how long to wait (in ms) for the dstore to answer
+     * @throws IOException if the file can't be read, the dstore does not acknowledge the request or the connection
+     * fails
+     */
+    public static void store(int port, String fileName, Path file, int timeout) throws IOException {
+        upload(port, Protocol.STORE_TOKEN + " " + fileName + " " + Files.size(file), out -> Files.copy(file, out),
+                timeout);
+    }
+
+    /**
+     * Uploads a file once to the first dstore of the chain, which forwards it to the next one, and so on. Every dstore
+     * sends its own STORE_ACK to the Controller, so STORE_COMPLETE is received as with a plain store.
+     * @param ports dstores' ports, as received in STORE_TO
+     * @param fileName name of the file
+     * @param data content of the file
+     * @param timeout how long to wait (in ms) for the first dstore to answer
+     * @throws IOException if the first dstore does not acknowledge the request or the connection fails
+     */
+    public static void storeChained(List<Integer> ports, String fileName, byte[] data, int timeout) throws IOException {
+        StringBuilder request = new StringBuilder(Protocol.STORE_CHAIN_TOKEN + " " + fileName + " " + data.length);
+        for (int port : ports.subList(1, ports.size())) {
+            request.append(" ").append(port);
+        }
+
+        upload(ports.get(0), request.toString(), data, timeout);
+    }
+
+    /**
+     * Encodes a file into k data shards and m parity shards and uploads shard i to the i-th dstore, all in parallel
+     * @param ports dstores' ports, as received in STORE_EC_TO (k + m of them)
+     * @param fileName name of the file
+     * @param data content of the file
+     * @param dataShards number of data shards (k)
+     * @param timeout how long to wait (in ms) for each dstore to answer
+     * @throws IOException if any of the shards could not be uploaded
+     */
+    public static void storeErasureCoded(List<Integer> ports, String fileName, byte[] data, int dataShards, int timeout)
+            throws IOException {
+        byte[][] shards = new ReedSolomon(dataShards, ports.size() - dataShards).encode(data);
+
+        List<Callable<Void>> uploads = new ArrayList<>();
+        for (int i = 0; i < ports.size(); i++) {
+            final int shard = i;
+            uploads.add(() -> {
+                store(ports.get(shard), fileName, shards[shard], timeout);
+                return null;
+            });
+        }
+
+        inParallel(uploads, "store every shard of " + fileName);
+    }
+
+    /**
+     * Loads k shards of an erasure coded file in parallel and rebuilds it. Whenever a shard cannot be loaded, one of
+     * the remaining shards is requested instead, until k shards have arrived or there are none left.
+     * @param shardPorts port of the dstore holding each available shard, as received in LOAD_EC_FROM
+     * @param fileName name of the file
+     * @param fileSize size of the file
+     * @param dataShards number of data shards (k)
+     * @param parityShards number of parity shards (m)
+     * @param timeout how long to wait (in ms) for each dstore
+     * @return content of the file
+     * @throws IOException if fewer than k shards could be loaded
+     */
+    public static byte[] loadErasureCoded(
+            Map<Integer, Integer> shardPorts,
+            String fileName,
+            int fileSize,
+            int dataShards,
+            int parityShards,
+            int timeout
+    ) throws IOException {
+        ReedSolomon codec = new ReedSolomon(dataShards, parityShards);
+        int shardSize = codec.shardSize(fileSize);
+
+        byte[][] shards = new byte[dataShards + parityShards][];
+        List<Integer> candidates = new ArrayList<>(shardPorts.keySet());
+        candidates.sort(null);
+
+        ExecutorService service = Executors.newFixedThreadPool(dataShards);
+        CompletionService<Integer> loads = new ExecutorCompletionService<>(service);
+
+        try {
+            int pending = 0;
+            int loaded = 0;
+
+            while (loaded < dataShards) {
+                // keep k loads in flight, preferring data shards, which need no decoding
+                while ((pending < dataShards - loaded) && !candidates.isEmpty()) {
+                    int shard = candidates.remove(0);
+                    loads.submit(() -> {
+                        byte[] content = new byte[shardSize];
+                        long n = loadRange(shardPorts.get(shard), fileName, 0, shardSize,
+                                (position, chunk, len) -> System.arraycopy(chunk, 0, content, (int) position, len),
+                                timeout);
+                        if (n < shardSize) {
+                            return -1;
+                        }
+                        shards[shard] = content;
+                        return shard;
+                    });
+                    pending++;
+                }
+
+                if (pending == 0) {
+                    throw new IOException("Only " + loaded + " of the " + dataShards + " shards needed to rebuild "
+                            + fileName + " could be loaded");
+                }
+
+                int shard = loads.take().get();
+                pending--;
+                if (shard >= 0) {
+                    loaded++;
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not load " + fileName, e);
+        } finally {
+            service.shutdownNow();
+        }
+
+        return codec.decode(shards, fileSize);
+    }
+
+    /**
+     * Uploads a file to several dstores in parallel with STORE_DEDUP. The file is split into content-defined chunks
+     * and each dstore is only sent the chunks it does not already have.
+     * @param ports dstores' ports, as received in STORE_TO
+     * @param fileName name of the file
+     * @param data content of the file
+     * @param timeout how long to wait (in ms) for each dstore to answer
+     * @return number of bytes of file content actually sent, adding up all the dstores
+     * @throws IOException if the file could not be uploaded to one of the dstores
+     */
+    public static long storeDeduplicated(List<Integer> ports, String fileName, byte[] data, int timeout)
+            throws IOException {
+        List<Chunker.Chunk> chunks = Chunker.split(data);
+
+        StringBuilder request = new StringBuilder(Protocol.STORE_DEDUP_TOKEN + " " + fileName + " " + data.length);
+        for (Chunker.Chunk chunk : chunks) {
+            request.append(" ").append(chunk.hash()).append(":").append(chunk.length());
+        }
+
+        List<Callable<Long>> uploads = new ArrayList<>();
+        for (int port : ports) {
+            uploads.add(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    socket.setSoTimeout(timeout);
+
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+                    out.println(request);
+
+                    String reply = in.readLine();
+                    if ((reply == null) || !reply.startsWith(Protocol.NEED_TOKEN)) {
+                        throw new IOException("Dstore " + port + " replied " + reply + " to STORE_DEDUP " + fileName);
+                    }
+
+                    long sent = 0;
+                    OutputStream dataOut = new BufferedOutputStream(socket.getOutputStream());
+                    for (String i : reply.substring(Protocol.NEED_TOKEN.length()).trim().split(" ")) {
+                        if (!i.isEmpty()) {
+                            Chunker.Chunk chunk = chunks.get(Integer.parseInt(i));
+                            dataOut.write(data, chunk.offset(), chunk.length());
+                            sent += chunk.length();
+                        }
+                    }
+                    dataOut.flush();
+
+                    return sent;
+                }
+            });
+        }
+
+        return inParallel(uploads, "store " + fileName).stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Uploads a file to several dstores in parallel, compressed with STORE_COMPRESSED. The file is compressed once for
+     * all of them, and the dstores keep it compressed. If a sample of the file shows it does not compress, it is
+     * uploaded with a plain STORE instead.
+     * @param ports dstores' ports, as received in STORE_TO
+     * @param fileName name of the file
+     * @param data content of the file
+     * @param codec preferred codec
+     * @param timeout how long to wait (in ms) for each dstore to answer
+     * @return number of bytes sent to each dstore
+     * @throws IOException if the file could not be uploaded to one of the dstores
+     */
+    public static int storeCompressed(
+            List<Integer> ports,
+            String fileName,
+            byte[] data,
+            Compression.Codec codec,
+            int timeout
+    ) throws IOException {
+        Compression.Codec chosen = Compression.choose(data, codec);
+        byte[] payload = (chosen == Compression.Codec.NONE) ? data : Compression.compress(data, chosen);
+        String request = (chosen == Compression.Codec.NONE)
+                ? Protocol.STORE_TOKEN + " " + fileName + " " + data.length
+                : Protocol.STORE_COMPRESSED_TOKEN + " " + fileName + " " + data.length + " " + chosen + " " + payload.length;
+
+        List<Callable<Void>> uploads = new ArrayList<>();
+        for (int port : ports) {
+            uploads.add(() -> {
+                upload(port, request, payload, timeout);
+                return null;
+            });
+        }
+
+        inParallel(uploads, "store " + fileName);
+        return payload.length;
+    }
+
+    /**
+     * Loads a whole file with LOAD_COMPRESSED, accepting any of the codecs, and decompresses it if the dstore sent it
+     * compressed
+     * @return content of the file
+     * @throws IOException if the dstore did not send the file
+     */
+    public static byte[] loadCompressed(int port, String fileName, int timeout) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(timeout);
+
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(Protocol.LOAD_COMPRESSED_TOKEN + " " + fileName + " "
+                    + Compression.Codec.DEFLATE_FAST + "," + Compression.Codec.DEFLATE_BEST);
+
+            // the header is read byte by byte so that none of the data after it is buffered away
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            StringBuilder header = new StringBuilder();
+            int c;
+            while (((c = in.read()) != -1) && (c != '\n')) {
+                header.append((char) c);
+            }
+
+            String[] args = header.toString().trim().split(" ");
+            if (!args[0].equals(Protocol.COMPRESSED_DATA_TOKEN)) {
+                throw new IOException("Dstore " + port + " did not send " + fileName);
+            }
+
+            int length = Integer.parseInt(args[2]);
+            byte[] payload = in.readNBytes(length);
+            if (payload.length < length) {
+                throw new IOException("Dstore " + port + " only sent " + payload.length + " bytes of " + fileName);
+            }
+
+            if (Compression.Codec.valueOf(args[1]) == Compression.Codec.NONE) {
+                return payload;
+            }
+            try (InputStream decompressed = Compression.decompress(new ByteArrayInputStream(payload))) {
+                return decompressed.readAllBytes();
+            }
+        }
+    }
+
+    /**
+     * Runs some transfers at the same time and waits for all of them
+     * @param what description of the transfers, for the error message
+     * @return the result of each transfer, in order
+     * @throws IOException if any of the transfers failed
+     */
+    private static <T> List<T> inParallel(List<Callable<T>> transfers, String what) throws IOException {
+        ExecutorService service = Executors.newFixedThreadPool(transfers.size());
+
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> transfer : service.invokeAll(transfers)) {
+                results.add(transfer.get());
+            }
+            return results;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not " + what, e);
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    private static void upload(int port, String request, byte[] data, int timeout) throws IOException {
+        upload(port, request, out -> out.write(data), timeout);
+    }
+
+    private static void upload(int port, String request, Content content, int timeout) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(timeout);
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            out.println(request);
+
+            String reply = in.readLine();
+            if (!Protocol.ACK_TOKEN.equals(reply)) {
+                throw new IOException("Dstore " + port + " replied " + reply + " to " + request);
+            }
+
+            content.writeTo(socket.getOutputStream());
+            socket.getOutputStream().flush();
+        }
+    }
+
+    /**
+     * Loads a range of a file from a single dstore with LOAD_DATA name offset length
+     * @return number of bytes received, which is less than length if the dstore failed or stopped half way
+     */
+    public static long loadRange(int port, String fileName, long offset, long length, RangeSink sink, int timeout) {
+        long received = 0;
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(timeout);
+
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(Protocol.LOAD_DATA_TOKEN + " " + fileName + " " + offset + " " + length);
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+
+            while (received < length) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+                if (n < 0) {
+                    break;
+                }
+                sink.write(offset + received, buffer, n);
+                received += n;
+            }
+        } catch (IOException e) {
+            System.err.println("Load of " + fileName + " from dstore " + port + " stopped after " + received + " bytes");
+        }
+
+        return received;
+    }
+
+    /**
+     * Loads a whole file by splitting it into one range per dstore and fetching the ranges in parallel. When a dstore
+     * fails, the part of its range that is still missing is resumed from the next dstore in the list.
+     * @param ports dstores holding the file, as received in LOCATIONS
+     * @param fileName name of the file
+     * @param fileSize size of the file
+     * @param sink where to write the received bytes
+     * @param timeout how long to wait (in ms) for each dstore
+     * @throws IOException if some range could not be loaded from any of the dstores
+     */
+    public static void loadParallel(List<Integer> ports, String fileName, long fileSize, RangeSink sink, int timeout)
+            throws IOException {
+        int nRanges = (int) Math.max(1, Math.min(ports.size(), fileSize / MIN_RANGE_SIZE));
+        long rangeSize = (fileSize + nRanges - 1) / nRanges;
+
+        ExecutorService service = Executors.newFixedThreadPool(nRanges);
+        List<Future<Boolean>> ranges = new ArrayList<>();
+
+        for (int i = 0; i < nRanges; i++) {
+            final int first = i;
+            final long start = i * rangeSize;
+            final long length = Math.min(rangeSize, fileSize - start);
+
+            ranges.add(service.submit(() -> {
+                long done = 0;
+                for (int attempt = 0; (attempt < ports.size()) && (done < length); attempt++) {
+                    int port = ports.get((first + attempt) % ports.size());
+                    done += loadRange(port, fileName, start + done, length - done, sink, timeout);
+                }
+                return done == length;
+            }));
+        }
+
+        try {
+            for (Future<Boolean> range : ranges) {
+                if (!range.get()) {
+                    throw new IOException("Could not load " + fileName + " from any of the dstores " + ports);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not load " + fileName, e);
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads a whole file into memory with loadParallel
+     */
+    public static byte[] loadParallel(List<Integer> ports, String fileName, int fileSize, int timeout) throws IOException {
+        byte[] data = new byte[fileSize];
+        loadParallel(ports, fileName, fileSize,
+                (position, chunk, len) -> System.arraycopy(chunk, 0, data, (int) position, len), timeout);
+        return data;
+    }
+
+    /**
+     * Loads a whole file to disk with loadParallel. Ranges are written straight to their position in the file, which
+     * is emptied first if it exists, so none of its old content is left past the end.
+     */
+    public static void loadParallel(List<Integer> ports, String fileName, long fileSize, Path target, int timeout)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            loadParallel(ports, fileName, fileSize,
+                    (position, chunk, len) -> channel.write(ByteBuffer.wrap(chunk, 0, len), position), timeout);
+        }
+    }
+}
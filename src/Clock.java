@@ -0,0 +1,44 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the time and runs tasks after a delay. The Controller's timeouts and failure detection go through it, so that
+ * ClusterSimulator can run them in virtual time.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new SystemClock();
+
+    long millis();
+
+    /**
+     * Runs a task once, after the given delay
+     */
+    void schedule(long delayMillis, Runnable task);
+
+    /**
+     * Wall-clock time, with tasks run on a single background thread, so they must be short
+     */
+    class SystemClock implements Clock {
+
+        private ScheduledExecutorService executor;
+
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public synchronized void schedule(long delayMillis, Runnable task) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "clock");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,553 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs the Controller against simulated Dstores and clients, in virtual time, on a single thread. The Controller is
+ * the real one (placement, acks, timeouts, failure detection), but the network, the dstores and the clients are
+ * simulated, so thousands of dstores can be run on a laptop, and a run takes as long as the Controller's work rather
+ * than the time simulated. Everything random comes from the seed, so the same options give the same run.
+ * <p>
+ * Usage: java ClusterSimulator [key=value...], e.g.
+ * java ClusterSimulator dstores=2000 files=20000 clients=200 duration=120 crashes=20 hangs=20 failAt=60 slow=50
+ * <p>
+ * The clients first store the files, then load, store and remove them for the rest of the run. At failAt seconds some
+ * dstores crash (their connection to the Controller closes) and some hang (they go quiet, and the Controller has to
+ * notice from the missing heartbeats). Slow dstores take slowFactor times longer to answer and transfer.
+ * <p>
+ * At the end it reports the latency of each operation in virtual time, how evenly the files were placed, how long
+ * hung dstores took to be suspected, and how many files were left with fewer than r replicas.
+ */
+public class ClusterSimulator {
+
+    private record Event(long time, long sequence, Runnable action) {
+    }
+
+    private int nDstores = 1000;
+    private int r = 3;
+    private int nFiles = 10000;
+    private int nClients = 100;
+    private int durationSeconds = 60;
+    private int timeout = 2000;
+    private long seed = 1;
+
+    /**
+     * One-way network latency (in ms), and the mean of the exponentially distributed jitter added to it
+     */
+    private double latencyMillis = 0.5;
+    private double jitterMillis = 0.2;
+
+    /**
+     * Bytes per ms of a transfer between a client and a dstore
+     */
+    private double bandwidth = 100_000;
+    private int fileSize = 65536;
+
+    private int statusIntervalMillis = 250;
+    private int crashes = 0;
+    private int hangs = 0;
+    private int failAtSeconds = 30;
+    private int slow = 0;
+    private double slowFactor = 10;
+    private boolean verbose = false;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>(
+            Comparator.comparingLong(Event::time).thenComparingLong(Event::sequence));
+    private long now = 0;
+    private long nextSequence = 0;
+    private long eventsRun = 0;
+    private Random random;
+
+    private final Clock clock = new Clock() {
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(long delayMillis, Runnable task) {
+            at(now + delayMillis, task);
+        }
+    };
+
+    private final TreeMap<Integer, SimulatedDstore> dstores = new TreeMap<>();
+
+    /**
+     * Names of the files stored (as far as the clients know), to pick loads and removes from
+     */
+    private final List<String> stored = new ArrayList<>();
+    private int nextFile = 0;
+
+    private final Map<String, LatencyHistogram> latencies = new TreeMap<>();
+    private final Map<String, Integer> errors = new TreeMap<>();
+    private final LatencyHistogram detection = new LatencyHistogram();
+
+    public static void main(String[] args) {
+        ClusterSimulator simulator = new ClusterSimulator();
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            switch (option[0]) {
+                case "dstores" -> simulator.nDstores = Integer.parseInt(option[1]);
+                case "r" -> simulator.r = Integer.parseInt(option[1]);
+                case "files" -> simulator.nFiles = Integer.parseInt(option[1]);
+                case "clients" -> simulator.nClients = Integer.parseInt(option[1]);
+                case "duration" -> simulator.durationSeconds = Integer.parseInt(option[1]);
+                case "timeout" -> simulator.timeout = Integer.parseInt(option[1]);
+                case "seed" -> simulator.seed = Long.parseLong(option[1]);
+                case "latencyMs" -> simulator.latencyMillis = Double.parseDouble(option[1]);
+                case "jitterMs" -> simulator.jitterMillis = Double.parseDouble(option[1]);
+                case "bandwidth" -> simulator.bandwidth = Double.parseDouble(option[1]);
+                case "fileSize" -> simulator.fileSize = Integer.parseInt(option[1]);
+                case "statusIntervalMs" -> simulator.statusIntervalMillis = Integer.parseInt(option[1]);
+                case "crashes" -> simulator.crashes = Integer.parseInt(option[1]);
+                case "hangs" -> simulator.hangs = Integer.parseInt(option[1]);
+                case "failAt" -> simulator.failAtSeconds = Integer.parseInt(option[1]);
+                case "slow" -> simulator.slow = Integer.parseInt(option[1]);
+                case "slowFactor" -> simulator.slowFactor = Double.parseDouble(option[1]);
+                case "verbose" -> simulator.verbose = Boolean.parseBoolean(option[1]);
+                default -> System.err.println("Unknown option " + arg);
+            }
+        }
+
+        simulator.run();
+    }
+
+    public void run() {
+        PrintStream out = System.out;
+        if (!verbose) {
+            // the Controller prints every message it sends and receives
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        long startTime = System.nanoTime();
+        random = new Random(seed);
+        resetController();
+
+        for (int i = 0; i < nDstores; i++) {
+            SimulatedDstore dstore = new SimulatedDstore(10000 + i);
+            dstores.put(dstore.port, dstore);
+            at(random.nextInt(statusIntervalMillis), dstore::join);
+        }
+
+        // the slowest and the failing dstores are picked at random, but not the same ones
+        List<SimulatedDstore> shuffled = new ArrayList<>(dstores.values());
+        Collections.shuffle(shuffled, random);
+        shuffled.stream().limit(slow).forEach(dstore -> dstore.slowness = slowFactor);
+        shuffled.stream().skip(slow).limit(crashes).forEach(dstore -> at(failAtSeconds * 1000L, dstore::crash));
+        shuffled.stream().skip(slow + crashes).limit(hangs).forEach(dstore -> at(failAtSeconds * 1000L, dstore::hang));
+
+        // clients start once the dstores have joined
+        for (int i = 0; i < nClients; i++) {
+            SimulatedClient client = new SimulatedClient(20000 + i);
+            at(statusIntervalMillis + random.nextInt(100), client::next);
+        }
+
+        runUntil(durationSeconds * 1000L);
+
+        System.setOut(out);
+        report((System.nanoTime() - startTime) / 1e9);
+    }
+
+    private void resetController() {
+        ControllerLogger.init(Logger.LoggingType.NO_LOG);
+        Controller.clock = clock;
+        Controller.r = r;
+        Controller.timeout = timeout;
+        Controller.index.clear();
+        Controller.activeDstores.clear();
+        Controller.tasks.clear();
+        Controller.subscribers.clear();
+        Controller.fileIndexToBeLoad.clear();
+    }
+
+    private void at(long time, Runnable action) {
+        events.add(new Event(time, nextSequence++, action));
+    }
+
+    /**
+     * Runs the events in time order, and after each one the Controller handles the messages it queued, like its main
+     * loop would
+     */
+    private void runUntil(long end) {
+        while (!events.isEmpty() && (events.peek().time() <= end)) {
+            Event event = events.poll();
+            now = event.time();
+            event.action().run();
+            eventsRun++;
+
+            Message msg;
+            while ((msg = Controller.tasks.poll()) != null) {
+                try {
+                    Controller.handleMessage(msg);
+                } catch (Exception e) {
+                    ControllerLogger.getInstance().couldNotHandleMessage(msg.getContent());
+                }
+            }
+        }
+        now = end;
+    }
+
+    private long delay(double slowness) {
+        return Math.round((latencyMillis - Math.log(1 - random.nextDouble()) * jitterMillis) * slowness);
+    }
+
+    private long transferTime(double slowness, int bytes) {
+        return delay(slowness) + Math.round(bytes / bandwidth * slowness);
+    }
+
+    /**
+     * One direction of a simulated connection: lines sent arrive at the receiver after the network delay, unless the
+     * link is closed by then. Only lines can be sent, since transfers between clients and dstores are simulated
+     * without going through a Transport.
+     */
+    private class Link implements Transport {
+
+        private final int port;
+        private final Consumer<String> receiver;
+        private final double slowness;
+        private boolean closed = false;
+
+        /**
+         * @param port port of the receiving end
+         */
+        Link(int port, Consumer<String> receiver, double slowness) {
+            this.port = port;
+            this.receiver = receiver;
+            this.slowness = slowness;
+        }
+
+        @Override
+        public void send(String line) {
+            if (!closed) {
+                clock.schedule(delay(slowness), () -> {
+                    if (!closed) {
+                        receiver.accept(line);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public String readLine() {
+            throw new UnsupportedOperationException("Lines are delivered by the simulator");
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) {
+            throw new UnsupportedOperationException("Transfers are not simulated byte by byte");
+        }
+
+        @Override
+        public int read(byte[] data, int off, int len) {
+            throw new UnsupportedOperationException("Transfers are not simulated byte by byte");
+        }
+
+        @Override
+        public boolean hasFailed() {
+            return closed;
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private class SimulatedDstore {
+
+        private final int port;
+        private final Map<String, Integer> files = new HashMap<>();
+        private double slowness = 1;
+        private boolean up = true;
+
+        /**
+         * When the dstore hung, or -1 if it did not
+         */
+        private long hungAt = -1;
+
+        /**
+         * The Controller's end of the connection
+         */
+        private NetworkController.DstoreThread controllerSide;
+
+        /**
+         * Lines to the Controller
+         */
+        private Link toController;
+
+        SimulatedDstore(int port) {
+            this.port = port;
+        }
+
+        void join() {
+            controllerSide = new NetworkController.DstoreThread(
+                    new Link(port, this::receive, slowness), port, Controller.tasks);
+            toController = new Link(0, controllerSide::handleLine, slowness);
+
+            // JOIN is handled by the Controller's connection thread before the dstore is known
+            controllerSide.joined();
+            reportStatus();
+        }
+
+        private void reportStatus() {
+            if (up) {
+                toController.send(Protocol.STATUS_TOKEN + " -1 0 0");
+                clock.schedule(statusIntervalMillis, this::reportStatus);
+            }
+        }
+
+        private void receive(String line) {
+            if (!up) {
+                return;
+            }
+
+            String[] args = line.split(" ");
+            if (args[0].equals(Protocol.REMOVE_TOKEN)) {
+                clock.schedule(delay(slowness), () -> {
+                    if (files.remove(args[1]) != null) {
+                        toController.send(Protocol.REMOVE_ACK_TOKEN + " " + args[1]);
+                    } else {
+                        toController.send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + args[1]);
+                    }
+                });
+            }
+        }
+
+        /**
+         * A client finished uploading a file
+         */
+        void stored(String fileName, int size) {
+            if (up) {
+                files.put(fileName, size);
+                toController.send(Protocol.STORE_ACK_TOKEN + " " + fileName);
+            }
+        }
+
+        boolean has(String fileName) {
+            return up && files.containsKey(fileName);
+        }
+
+        /**
+         * The process dies, so the Controller sees its connection close
+         */
+        void crash() {
+            up = false;
+            toController.close();
+            clock.schedule(delay(1), () -> Controller.removeDstore(controllerSide));
+        }
+
+        /**
+         * The process stops responding, but its connection stays open
+         */
+        void hang() {
+            up = false;
+            hungAt = now;
+            toController.close();
+            checkSuspected();
+        }
+
+        private void checkSuspected() {
+            if (controllerSide.isSuspected()) {
+                detection.record((now - hungAt) * 1000);
+            } else {
+                clock.schedule(10, this::checkSuspected);
+            }
+        }
+    }
+
+    /**
+     * Client running one operation at a time: it stores the files until they are all stored, and then loads (80%),
+     * stores (10%) and removes (10%) files picked at random
+     */
+    private class SimulatedClient {
+
+        private final int port;
+
+        /**
+         * Lines to and from the Controller, and the Controller's end of the connection
+         */
+        private Link toController;
+        private Link fromController;
+        private ConnectionThread controllerSide;
+
+        /**
+         * Handles the Controller's replies to the operation in progress
+         */
+        private Consumer<String> onReply;
+
+        private String operation;
+        private long startTime;
+
+        /**
+         * Number of the operation in progress, so the timeout of an operation that already finished does nothing
+         */
+        private long operationNumber = 0;
+
+        SimulatedClient(int port) {
+            this.port = port;
+            connect();
+        }
+
+        /**
+         * Opens a new connection to the Controller, as after a timeout, when replies to the earlier request could
+         * still arrive on the old one
+         */
+        private void connect() {
+            if (toController != null) {
+                toController.close();
+                fromController.close();
+            }
+
+            fromController = new Link(port, line -> onReply.accept(line), 1);
+            controllerSide = new ConnectionThread(fromController);
+            ConnectionThread connection = controllerSide;
+            toController = new Link(0, line -> Controller.tasks.add(new Message(line, connection)), 1);
+        }
+
+        void next() {
+            double dice = random.nextDouble();
+            if ((nextFile < nFiles) || stored.isEmpty() || (dice < 0.1)) {
+                store("file" + nextFile++);
+            } else if (dice < 0.2) {
+                remove(stored.remove(random.nextInt(stored.size())));
+            } else {
+                load(stored.get(random.nextInt(stored.size())));
+            }
+        }
+
+        private void start(String operation, String request, Consumer<String> onReply) {
+            this.operation = operation;
+            this.onReply = onReply;
+            startTime = now;
+
+            long number = ++operationNumber;
+            clock.schedule(timeout, () -> {
+                if (operationNumber == number) {
+                    failed("timeout");
+                    connect();
+                }
+            });
+
+            toController.send(request);
+        }
+
+        private void succeeded() {
+            latencies.computeIfAbsent(operation, k -> new LatencyHistogram()).record((now - startTime) * 1000);
+            finished();
+        }
+
+        private void failed(String reason) {
+            errors.merge(operation + " " + reason, 1, Integer::sum);
+            finished();
+        }
+
+        private void finished() {
+            operationNumber++;
+            onReply = line -> { };
+            clock.schedule(1, this::next);
+        }
+
+        private void store(String fileName) {
+            start("store", Protocol.STORE_TOKEN + " " + fileName + " " + fileSize, reply -> {
+                String[] args = reply.split(" ");
+                if (args[0].equals(Protocol.STORE_TO_TOKEN)) {
+                    for (int i = 1; i < args.length; i++) {
+                        SimulatedDstore dstore = dstores.get(Integer.parseInt(args[i]));
+                        clock.schedule(transferTime(dstore.slowness, fileSize), () -> dstore.stored(fileName, fileSize));
+                    }
+                } else if (args[0].equals(Protocol.STORE_COMPLETE_TOKEN)) {
+                    stored.add(fileName);
+                    succeeded();
+                } else {
+                    failed(args[0]);
+                }
+            });
+        }
+
+        private void load(String fileName) {
+            start("load", Protocol.LOAD_TOKEN + " " + fileName, reply -> {
+                String[] args = reply.split(" ");
+                if (!args[0].equals(Protocol.LOAD_FROM_TOKEN)) {
+                    failed(args[0]);
+                    return;
+                }
+
+                // a dstore that is down refuses the connection, and one without the file closes it
+                SimulatedDstore dstore = dstores.get(Integer.parseInt(args[1]));
+                if (dstore.has(fileName)) {
+                    long number = operationNumber;
+                    clock.schedule(transferTime(dstore.slowness, fileSize), () -> {
+                        if (operationNumber == number) {
+                            succeeded();
+                        }
+                    });
+                } else {
+                    clock.schedule(delay(1), () -> toController.send(Protocol.RELOAD_TOKEN + " " + fileName));
+                }
+            });
+        }
+
+        private void remove(String fileName) {
+            start("remove", Protocol.REMOVE_TOKEN + " " + fileName, reply -> {
+                if (reply.equals(Protocol.REMOVE_COMPLETE_TOKEN)) {
+                    succeeded();
+                } else {
+                    failed(reply.split(" ")[0]);
+                }
+            });
+        }
+    }
+
+    private void report(double wallSeconds) {
+        System.out.printf("Simulated %d s with %d dstores and %d clients in %.1f s (%d events)%n%n",
+                durationSeconds, nDstores, nClients, wallSeconds, eventsRun);
+
+        System.out.printf("%-7s %9s %9s %9s %9s %9s %9s%n", "op", "ok", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        latencies.forEach((operation, histogram) -> System.out.printf("%-7s %9d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                operation, histogram.getCount(), histogram.getMean() / 1000, histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(99) / 1000.0, histogram.getPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0));
+        errors.forEach((error, n) -> System.out.println("  " + error + ": " + n));
+
+        // files per available dstore, counted from the Controller's index
+        Map<NetworkController.DstoreThread, Integer> placed = new HashMap<>();
+        Controller.activeDstores.stream()
+                .filter(dstore -> !dstore.isSuspected())
+                .forEach(dstore -> placed.put(dstore, 0));
+        int underReplicated = 0;
+        for (FileProperties fp : Controller.index.values()) {
+            if (!fp.storeIsCompleted()) {
+                continue;
+            }
+            int available = 0;
+            for (NetworkController.DstoreThread dstore : fp.getDstores()) {
+                if (placed.containsKey(dstore) && !dstore.isSuspected()) {
+                    placed.merge(dstore, 1, Integer::sum);
+                    available++;
+                }
+            }
+            if (available < r) {
+                underReplicated++;
+            }
+        }
+
+        IntSummaryStatistics perDstore = placed.values().stream().mapToInt(Integer::intValue).summaryStatistics();
+        double variance = placed.values().stream()
+                .mapToDouble(n -> Math.pow(n - perDstore.getAverage(), 2)).average().orElse(0);
+        System.out.printf("%nFiles per dstore: min %d, mean %.1f, max %d, stddev %.1f%n", perDstore.getMin(),
+                perDstore.getAverage(), perDstore.getMax(), Math.sqrt(variance));
+        System.out.println("Files with fewer than " + r + " available replicas: " + underReplicated);
+
+        if (hangs > 0) {
+            System.out.printf("Hung dstores suspected: %d of %d, after %.0f ms on average (max %.0f ms)%n",
+                    detection.getCount(), hangs, detection.getMean() / 1000, detection.getMax() / 1000.0);
+        }
+    }
+}
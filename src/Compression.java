@@ -0,0 +1,75 @@
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Codecs used to compress file content on the wire and at rest. Both codecs produce a zlib stream, so anything
+ * compressed with either of them is decompressed the same way: the choice only trades CPU for ratio when compressing.
+ */
+public class Compression {
+
+    public enum Codec {
+        NONE(Deflater.NO_COMPRESSION),
+        DEFLATE_FAST(Deflater.BEST_SPEED),
+        DEFLATE_BEST(Deflater.BEST_COMPRESSION);
+
+        private final int level;
+
+        Codec(int level) {
+            this.level = level;
+        }
+    }
+
+    /**
+     * How much of a file is compressed to decide whether compressing all of it is worth it
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Files whose sample does not shrink below this fraction of its size are sent as they are
+     */
+    private static final double MAX_USEFUL_RATIO = 0.9;
+
+    /**
+     * Picks the codec to send a file with: the preferred one, unless a sample of the file shows it is not compressible
+     * (e.g. it is already compressed or encrypted), in which case it is better not to spend CPU on it
+     */
+    public static Codec choose(byte[] data, Codec preferred) {
+        if ((preferred == Codec.NONE) || (data.length == 0)) {
+            return Codec.NONE;
+        }
+
+        int sampleSize = Math.min(SAMPLE_SIZE, data.length);
+        byte[] sample = compress(data, 0, sampleSize, Codec.DEFLATE_FAST);
+
+        return (sample.length < sampleSize * MAX_USEFUL_RATIO) ? preferred : Codec.NONE;
+    }
+
+    public static byte[] compress(byte[] data, Codec codec) {
+        return compress(data, 0, data.length, codec);
+    }
+
+    private static byte[] compress(byte[] data, int off, int len, Codec codec) {
+        Deflater deflater = new Deflater(codec.level);
+        deflater.setInput(data, off, len);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, len / 2));
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps a stream of data compressed with any of the codecs so that reading it gives the original content
+     */
+    public static InputStream decompress(InputStream compressed) {
+        return new InflaterInputStream(compressed);
+    }
+}
@@ -5,35 +5,62 @@ import java.net.Socket;
 
 public class ConnectionThread {
 
-    protected final Socket socket;
-    protected final BufferedReader in;
-    protected final PrintWriter out;
+    protected final Transport transport;
 
     public ConnectionThread(Socket socket, BufferedReader in, PrintWriter out) {
-        this.socket = socket;
-        this.in = in;
-        this.out = out;
+        this(new SocketTransport(socket, in, out));
+    }
+
+    public ConnectionThread(Transport transport) {
+        this.transport = transport;
     }
 
     public synchronized void communicate(String message) {
-        out.println(message);
-//        ControllerLogger.getInstance().messageSent(socket.getPort(), message);
-        System.out.println("Sending: " + message + " (to port " + socket.getPort() + ")");
+        communicate(message, true);
+    }
+
+    /**
+     * @param log whether to print the message, which is not wanted for periodic ones like STATUS
+     */
+    public synchronized void communicate(String message, boolean log) {
+        transport.send(message);
+//        ControllerLogger.getInstance().messageSent(transport.getPort(), message);
+        if (log) {
+            System.out.println("Sending: " + message + " (to port " + transport.getPort() + ")");
+        }
+    }
+
+    /**
+     * @return the next line received, or null once the other end closed the connection
+     */
+    public String readLine() throws IOException {
+        return transport.readLine();
+    }
+
+    /**
+     * @return whether sending a message has failed, e.g. because the other end closed the connection
+     */
+    public boolean hasFailed() {
+        return transport.hasFailed();
     }
 
-    public Socket getSocket() {
-        return socket;
+    public Transport getTransport() {
+        return transport;
     }
 
     public synchronized void closeConnection() throws IOException {
-        this.socket.close();
+        transport.close();
     }
 
     public synchronized void writeData(byte[] data) throws IOException {
-        this.socket.getOutputStream().write(data);
+        transport.write(data, 0, data.length);
+    }
+
+    public synchronized void writeData(byte[] data, int off, int len) throws IOException {
+        transport.write(data, off, len);
     }
 
     public synchronized int readData(byte[] data, int off, int len) throws IOException {
-        return this.socket.getInputStream().readNBytes(data, off, len);
+        return transport.read(data, off, len);
     }
 }
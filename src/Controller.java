@@ -1,6 +1,7 @@
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Controller {
 
@@ -25,20 +26,103 @@ public class Controller {
      */
     protected static int rebalancePeriod;
 
+    /**
+     * Number of STORE_ACKs after which the client gets STORE_COMPLETE, or 0 to wait for all r of them. The other
+     * dstores keep storing the file in the background.
+     */
+    protected static int writeQuorum = 0;
+
+    /**
+     * Most files sent in a reply to LIST_PAGE, whatever limit the client asks for
+     */
+    protected static int maxListPage = 1000;
+
+    /**
+     * Whether FAULTS messages are accepted, which is only the case if the Controller was started with faults=runtime
+     */
+    protected static boolean runtimeFaults = false;
+
+    /**
+     * Phi above which a dstore whose heartbeats stopped is suspected of having failed
+     */
+    protected static double phiThreshold = 8;
+
+    /**
+     * Lower bound (in ms) of the deviation of heartbeat intervals assumed by the failure detector
+     */
+    protected static int minHeartbeatStdMillis = 100;
+
+    /**
+     * Silence (in ms) tolerated on top of a dstore's usual heartbeat interval before its suspicion starts growing
+     */
+    protected static int acceptablePauseMillis = 0;
+
+    /**
+     * Time used for timeouts and failure detection, which is virtual in ClusterSimulator
+     */
+    protected static Clock clock = Clock.SYSTEM;
+
+    /**
+     * Controllers sharing the files by the hash of their name, all of them placing files on the same dstores, or null
+     * if this is the only one
+     */
+    protected static Partitions partitions;
+
     /**
      * Set consisting of the active threads that are listening to dstores
      */
-    protected static final HashSet<NetworkController.DstoreThread> activeDstores = new HashSet<>();
+    protected static final Set<NetworkController.DstoreThread> activeDstores = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Set mapping each file with its properties (size, status, and dstores that have it), sorted by name so that the
+     * files starting with a prefix can be listed without going through the others
+     */
+    protected static final ConcurrentSkipListMap<String, FileProperties> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * Messages received from the connection threads that need to be handled, taken from each connection in turns
+     */
+    protected static final FairTaskQueue tasks = new FairTaskQueue();
+
+    /**
+     * Limits on the requests admitted from clients (see FairTaskQueue), beyond which they get ERROR_OVERLOADED
+     */
+    protected static int maxQueued = 10000;
+    protected static int maxQueuedPerClient = 64;
+    protected static double clientRate = 1000;
+    protected static int clientBurst = 100;
+
+    /**
+     * Turns the dstores get in the main loop for each turn of a client
+     */
+    protected static int dstoreWeight = 4;
+
+    /**
+     * Client connections that asked to be told with INVALIDATE when a file they may have cached the location of is
+     * removed
+     */
+    protected static final Set<ConnectionThread> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Replicated files with fewer than r dstores, which are copied to others in the background
+     */
+    protected static final Set<String> underReplicated = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Files being copied to other dstores right now
+     */
+    protected static final Set<String> replicating = ConcurrentHashMap.newKeySet();
 
     /**
-     * Set mapping each file with its properties (size, status, and dstores that have it)
+     * Follower controllers (see FollowerController), sent every change to the files that can be read, and INDEX_SYNC
+     * every syncIntervalMillis so they know how far behind they may be
      */
-    protected static final ConcurrentHashMap<String, FileProperties> index = new ConcurrentHashMap<>();
+    protected static final Set<ConnectionThread> followers = ConcurrentHashMap.newKeySet();
 
     /**
-     * Messages received from the connection threads that need to be handled
+     * How often (in ms) to tell the followers they have every change so far
      */
-    protected static final ConcurrentLinkedQueue<Message> tasks = new ConcurrentLinkedQueue<>();
+    protected static int syncIntervalMillis = 100;
 
     /**
      * Load operations that have not yet been completed
@@ -55,21 +139,58 @@ public class Controller {
         timeout = Integer.parseInt(args[2]);
         rebalancePeriod = Integer.parseInt(args[3]);
 
+        // optional settings, given as key=value after the mandatory arguments
+        for (int i = 4; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            switch (option[0]) {
+                case "phiThreshold" -> phiThreshold = Double.parseDouble(option[1]);
+                case "minHeartbeatStdMs" -> minHeartbeatStdMillis = Integer.parseInt(option[1]);
+                case "acceptablePauseMs" -> acceptablePauseMillis = Integer.parseInt(option[1]);
+                case "controllers" -> partitions = Partitions.parse(option[1]);
+                case "syncIntervalMs" -> syncIntervalMillis = Integer.parseInt(option[1]);
+                case "writeQuorum" -> writeQuorum = Integer.parseInt(option[1]);
+                case "maxListPage" -> maxListPage = Integer.parseInt(option[1]);
+                case "faults" -> runtimeFaults = option[1].equals("runtime");
+                case "maxQueued" -> maxQueued = Integer.parseInt(option[1]);
+                case "maxQueuedPerClient" -> maxQueuedPerClient = Integer.parseInt(option[1]);
+                case "clientRate" -> clientRate = Double.parseDouble(option[1]);
+                case "clientBurst" -> clientBurst = Integer.parseInt(option[1]);
+                case "dstoreWeight" -> dstoreWeight = Integer.parseInt(option[1]);
+                default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+
+        tasks.setLimits(maxQueued, maxQueuedPerClient, clientRate, clientBurst, dstoreWeight);
+
+        if ((partitions != null) && (partitions.indexOf(cport) < 0)) {
+            System.err.println("Port " + cport + " is not one of the controllers " + partitions);
+            return;
+        }
+
+        // log when dstores become suspected or recover; placement and loads check the detectors themselves
+        clock.schedule(100, Controller::monitorDstores);
+        clock.schedule(syncIntervalMillis, Controller::syncFollowers);
+        if (rebalancePeriod > 0) {
+            clock.schedule(rebalancePeriod * 1000L, Controller::rebalance);
+        }
+
         // We start a thread that will constantly listen to all incoming connections
         Thread incomingConnections = new Thread(new NetworkController(cport, tasks));
         incomingConnections.start();
 
-        // This is the main execution loop
+        // This is the main execution loop, which waits for messages instead of polling for them
         while (true) {
-            Message msg = tasks.poll();
-
-            if (msg != null) {
+            Message msg;
+            try {
+                msg = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
 
-                try {
-                    handleMessage(msg);
-                } catch (Exception e) {
-                    ControllerLogger.getInstance().couldNotHandleMessage(msg.getContent());
-                }
+            try {
+                handleMessage(msg);
+            } catch (Exception e) {
+                ControllerLogger.getInstance().couldNotHandleMessage(msg.getContent());
             }
         }
     }
@@ -81,13 +202,25 @@ public class Controller {
      */
     public static void handleMessage(Message msg) throws Exception {
 
-        if (msg.getContent().startsWith(Protocol.STORE_TOKEN)) {
-            if (canPerformStoreOp(msg))  storeOp(msg);
+        if (msg.getContent().startsWith(Protocol.STORE_EC_TOKEN)) {
+            if (!redirected(msg))  storeErasureCodedOp(msg);
+        } else if (msg.getContent().startsWith(Protocol.STORE_TOKEN)) {
+            if (!redirected(msg) && canPerformStoreOp(msg, r))  storeOp(msg);
         } else if (msg.getContent().startsWith(Protocol.LOAD_TOKEN)) {
-            if (canPerformRemoveLoadOp(msg))  loadOp(msg);
+            if (!redirected(msg) && canPerformRemoveLoadOp(msg))  loadOp(msg);
+        } else if (msg.getContent().startsWith(Protocol.LOCATE_TOKEN)) {
+            if (!redirected(msg) && canPerformRemoveLoadOp(msg))  locateOp(msg);
         } else if (msg.getContent().startsWith(Protocol.REMOVE_TOKEN)) {
-            if (canPerformRemoveLoadOp(msg))  removeOp(msg);
-        } else if (msg.getContent().equals(Protocol.LIST_TOKEN)) {
+            if (!redirected(msg) && canPerformRemoveLoadOp(msg))  removeOp(msg);
+        } else if (msg.getContent().equals(Protocol.PARTITIONS_TOKEN)) {
+            msg.getSender().communicate(((partitions != null) ? partitions : new Partitions(cport)).toReply());
+        } else if (msg.getContent().equals(Protocol.SUBSCRIBE_TOKEN)) {
+            subscribers.add(msg.getSender());
+        } else if (msg.getContent().equals(Protocol.FOLLOW_TOKEN)) {
+            followOp(msg);
+        } else if (msg.getContent().startsWith(Protocol.LIST_PAGE_TOKEN)) {
+            if (canPerformListOp(msg))  listPageOp(msg);
+        } else if (msg.getContent().equals(Protocol.LIST_TOKEN) || msg.getContent().startsWith(Protocol.LIST_TOKEN + " ")) {
             if (canPerformListOp(msg))  listOp(msg);
         } else if (msg.getContent().startsWith(Protocol.STORE_ACK_TOKEN)) {
 //            handleStoreAck(msg);
@@ -95,15 +228,45 @@ public class Controller {
             handleReload(msg);
         } else if (msg.getContent().startsWith(Protocol.REMOVE_ACK_TOKEN)) {
 //            handleRemoveAck(msg);
+        } else if (msg.getContent().startsWith(Protocol.REBALANCE_COMPLETE_TOKEN)) {
+            // every copy made was already acknowledged with a STORE_ACK from the dstore receiving it
+        } else if (msg.getContent().startsWith(Protocol.INVENTORY_TOKEN)) {
+            inventoryOp(msg);
+        } else if (msg.getContent().startsWith(Protocol.FAULTS_TOKEN)) {
+            faultsOp(msg);
         } else {
             throw new Exception("Unknown operation token");
         }
     }
 
-    public static boolean canPerformStoreOp(Message msg) {
+    /**
+     * Replies REDIRECT port to a request for a file that another controller is in charge of, so that a client without
+     * the partition map can still find it (e.g. after asking any controller for it with PARTITIONS)
+     * @param msg STORE, STORE_EC, LOAD, LOCATE or REMOVE message
+     * @return whether the request was redirected
+     */
+    public static boolean redirected(Message msg) {
+        if (partitions == null) {
+            return false;
+        }
+
+        int owner = partitions.controllerFor(msg.getContent().split(" ")[1]);
+        if (owner == cport) {
+            return false;
+        }
+
+        msg.getSender().communicate(Protocol.REDIRECT_TOKEN + " " + owner);
+        return true;
+    }
+
+    /**
+     * @param msg STORE or STORE_EC message
+     * @param nDstores number of dstores the file will be spread over
+     */
+    public static boolean canPerformStoreOp(Message msg, int nDstores) {
         String fileName = msg.getContent().split(" ")[1];
 
-        if (activeDstores.size() < r) {
+        if (activeDstores.size() < nDstores) {
             msg.getSender().communicate(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
             return false;
         }
@@ -147,16 +310,20 @@ public class Controller {
         String fileName = msg.getContent().split(" ")[1];
         int fileSize = Integer.parseInt(msg.getContent().split(" ")[2]);
 
+        // fewer than r dstores may have room for the file, even if there are enough of them
+        List<NetworkController.DstoreThread> dstoresToBeUsed = getRActiveDstoresSorted(fileSize);
+        if (dstoresToBeUsed.size() < r) {
+            msg.getSender().communicate(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
         // we update index, so when the Controller receives a store request for the same file from another client,
         // it will know that there's already a store operation in progress for that file.
-        index.put(fileName, new FileProperties(
-                fileSize,
-                FileProperties.FileStatus.STORE_IN_PROGRESS,
-                new ArrayList<>()
-        ));
-
-        // this should be always equal to r, but just in case
-        List<NetworkController.DstoreThread> dstoresToBeUsed = getRActiveDstoresSorted();
+        FileProperties fp = new FileProperties(fileSize, FileProperties.FileStatus.STORE_IN_PROGRESS, new ArrayList<>());
+        if (!claim(fileName, fp)) {
+            msg.getSender().communicate(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+            return;
+        }
 
         StringBuilder ports = new StringBuilder();
 
@@ -164,47 +331,279 @@ public class Controller {
             ports.append(dstore.getPort()).append(" ");
         }
 
+        // the acks must be expected before the client can start storing, or the first ones could be missed
+        List<CompletableFuture<Void>> acks = expectStoreAcks(fileName, dstoresToBeUsed);
+
         // send the ports of those dstores to the client
         msg.getSender().communicate(Protocol.STORE_TO_TOKEN + " " + ports.toString().trim());
 
-        CountDownLatch latch = new CountDownLatch(dstoresToBeUsed.size());
+        int quorum = ((writeQuorum > 0) && (writeQuorum < r)) ? writeQuorum : r;
+        awaitStoreAcks(fileName, fp, dstoresToBeUsed, acks, fileSize, quorum,
+                () -> storeCompleted(msg, fileName, fp), () -> abandonStore(fileName, fp))
+                .thenRun(() -> checkReplication(fileName));
+    }
+
+    /**
+     * Stores a file as k data shards and m parity shards, each on a different dstore, instead of r full copies.
+     * The client is told which dstore gets each shard with STORE_EC_TO p0 p1 ... p(k+m-1), and then stores shard i
+     * on dstore pi with a plain STORE, so the dstores don't need to know the file is erasure coded.
+     * @param msg STORE_EC filename filesize k m message
+     */
+    public static void storeErasureCodedOp(Message msg) {
+        String[] args = msg.getContent().split(" ");
+        String fileName = args[1];
+        int fileSize = Integer.parseInt(args[2]);
+        int dataShards = Integer.parseInt(args[3]);
+        int parityShards = Integer.parseInt(args[4]);
+
+        // Reed-Solomon over GF(256) can't have more than 256 shards
+        if ((dataShards <= 0) || (parityShards < 0) || (dataShards + parityShards > 256)) {
+            throw new IllegalArgumentException("Invalid number of shards in " + msg.getContent());
+        }
+
+        if (!canPerformStoreOp(msg, dataShards + parityShards)) {
+            return;
+        }
+
+        // each dstore stores one shard, the file's size divided by k and rounded up
+        int shardSize = Math.max(1, (fileSize + dataShards - 1) / dataShards);
+        List<NetworkController.DstoreThread> dstoresToBeUsed =
+                getActiveDstoresSorted(dataShards + parityShards, shardSize);
+        if (dstoresToBeUsed.size() < dataShards + parityShards) {
+            msg.getSender().communicate(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+
+        FileProperties fp = new FileProperties(
+                fileSize,
+                FileProperties.FileStatus.STORE_IN_PROGRESS,
+                new ArrayList<>(),
+                dataShards,
+                dstoresToBeUsed.toArray(new NetworkController.DstoreThread[0])
+        );
+        if (!claim(fileName, fp)) {
+            msg.getSender().communicate(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+            return;
+        }
+
+        StringBuilder ports = new StringBuilder();
+
+        for (NetworkController.DstoreThread dstore : dstoresToBeUsed) {
+            ports.append(" ").append(dstore.getPort());
+        }
+
+        List<CompletableFuture<Void>> acks = expectStoreAcks(fileName, dstoresToBeUsed);
+        msg.getSender().communicate(Protocol.STORE_EC_TO_TOKEN + ports);
+
+        // every shard is different, so none of them can be left to the background
+        awaitStoreAcks(fileName, fp, dstoresToBeUsed, acks, shardSize, dstoresToBeUsed.size(),
+                () -> storeCompleted(msg, fileName, fp), () -> abandonStore(fileName, fp));
+    }
+
+    /**
+     * Adds the entry of a new store to the index, unless the file is already there and not removed yet
+     * @return false if the file already exists
+     */
+    private static boolean claim(String fileName, FileProperties fp) {
+        while (true) {
+            FileProperties existing = index.putIfAbsent(fileName, fp);
+            if (existing == null) {
+                return true;
+            }
+            if (!existing.removeIsCompleted()) {
+                return false;
+            }
+            // the removal finished but its entry was not dropped yet
+            if (index.replace(fileName, existing, fp)) {
+                return true;
+            }
+        }
+    }
+
+    private static List<CompletableFuture<Void>> expectStoreAcks(
+            String fileName,
+            List<NetworkController.DstoreThread> dstores
+    ) {
+        return dstores.stream().map(dstore -> dstore.expectStoreAck(fileName)).toList();
+    }
 
-        // service that will start a timeout on each dstore and update the index & communicate STORE_COMPLETE
-        // to the client if successful.
-        ExecutorService handleStoreAcks = Executors.newFixedThreadPool(dstoresToBeUsed.size());
+    /**
+     * Adds each dstore to the index as its STORE_ACK arrives, and runs onQuorum as soon as quorum of them have
+     * acknowledged the file within the timeout, or onFailure if they haven't by then. Nothing waits in the meantime:
+     * the acks are handled by the threads reading from the dstores, and the timeout by the clock. The bytes are
+     * reserved on each dstore until it acknowledges the file, or the timeout expires, so that stores placed in the
+     * meantime don't count on space that is about to be taken.
+     * <p>
+     * A dstore acknowledging the file after its removal started, or the store was abandoned, is told to remove it.
+     * @param fp entry of the file in the index, which the acks are only added to while it is still there
+     * @param acks futures returned by expectStoreAcks, in the same order as the dstores
+     * @return completes once every dstore acknowledged the file or the timeout expired
+     */
+    private static CompletableFuture<Void> awaitStoreAcks(
+            String fileName,
+            FileProperties fp,
+            List<NetworkController.DstoreThread> dstoresToBeUsed,
+            List<CompletableFuture<Void>> acks,
+            long bytesPerDstore,
+            int quorum,
+            Runnable onQuorum,
+            Runnable onFailure
+    ) {
+        Set<NetworkController.DstoreThread> reserved = ConcurrentHashMap.newKeySet();
         for (NetworkController.DstoreThread dstore : dstoresToBeUsed) {
-            handleStoreAcks.submit(() -> {
-                dstore.awaitForStoreAcks(fileName);
+            dstore.reserve(bytesPerDstore);
+            reserved.add(dstore);
+        }
 
-//                synchronized (latch) {
-                    latch.countDown();
-//                }
+        AtomicInteger acknowledged = new AtomicInteger();
+        CompletableFuture<Boolean> quorumReached = new CompletableFuture<>();
 
-                synchronized (index) {
-                    index.get(fileName).addDstore(dstore);
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
+        for (int i = 0; i < dstoresToBeUsed.size(); i++) {
+            NetworkController.DstoreThread dstore = dstoresToBeUsed.get(i);
+            stored.add(acks.get(i).thenRun(() -> {
+                if (reserved.remove(dstore)) {
+                    dstore.release(bytesPerDstore);
                 }
+
+                if (!fp.addDstore(dstore)) {
+                    dstore.communicate(Protocol.REMOVE_TOKEN + " " + fileName);
+                    return;
+                }
+
                 ControllerLogger.getInstance().storeToDstoreCompleted(fileName, dstore.getPort());
-            });
+                if (acknowledged.incrementAndGet() == quorum) {
+                    quorumReached.complete(true);
+                } else if (fp.storeIsCompleted()) {
+                    // a replica finishing after the client was told the store is complete
+                    publishPut(fileName);
+                }
+            }));
         }
 
-        ExecutorService awaiter = Executors.newSingleThreadExecutor();
-        awaiter.submit(() -> {
-            try {
-                if (latch.await(timeout, TimeUnit.MILLISECONDS)) {
-                    synchronized (index) {
-                        index.get(fileName).setStatus(FileProperties.FileStatus.STORE_COMPLETE);
+        CompletableFuture<Void> all = CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]));
+        clock.schedule(timeout, () -> {
+            quorumReached.complete(false);
+            all.completeExceptionally(new TimeoutException());
+        });
+
+        quorumReached.thenAccept(reached -> (reached ? onQuorum : onFailure).run());
+
+        return all.handle((result, e) -> {
+            if (e != null) {
+                // the dstores that did not acknowledge in time are not going to store the file
+                for (int i = 0; i < dstoresToBeUsed.size(); i++) {
+                    NetworkController.DstoreThread dstore = dstoresToBeUsed.get(i);
+                    dstore.cancelAck(fileName, acks.get(i));
+                    if (reserved.remove(dstore)) {
+                        dstore.release(bytesPerDstore);
                     }
-                    msg.getSender().communicate(Protocol.STORE_COMPLETE_TOKEN);
-                    ControllerLogger.getInstance().storeCompleted(fileName);
-                }
-            } catch (InterruptedException e) {
-                synchronized (index) {
-                    index.remove(fileName);
                 }
             }
+            return null;
         });
     }
 
+    private static void storeCompleted(Message msg, String fileName, FileProperties fp) {
+        if (!fp.transition(FileProperties.FileStatus.STORE_IN_PROGRESS, FileProperties.FileStatus.STORE_COMPLETE)) {
+            return;
+        }
+        publishPut(fileName);
+        msg.getSender().communicate(Protocol.STORE_COMPLETE_TOKEN);
+        ControllerLogger.getInstance().storeCompleted(fileName);
+    }
+
+    /**
+     * Gives up on a store that too few dstores acknowledged in time: the file is dropped from the index, so it can be
+     * stored again, and the dstores that did store it are told to remove it. The client never gets STORE_COMPLETE.
+     */
+    private static void abandonStore(String fileName, FileProperties fp) {
+        if (!fp.transition(FileProperties.FileStatus.STORE_IN_PROGRESS, FileProperties.FileStatus.REMOVE_COMPLETE)) {
+            return;
+        }
+        // no dstore can be added any more, so these are all the dstores that have it
+        List<NetworkController.DstoreThread> holders = fp.getDstores();
+        index.remove(fileName, fp);
+
+        System.err.println("Store of " + fileName + " failed: only " + holders.size()
+                + " dstores acknowledged it in time");
+        for (NetworkController.DstoreThread dstore : holders) {
+            fp.removeDstore(dstore);
+            dstore.communicate(Protocol.REMOVE_TOKEN + " " + fileName);
+        }
+    }
+
+    /**
+     * Starts copying a replicated file with fewer than r dstores to others, and keeps track of it until it has them
+     */
+    private static void checkReplication(String fileName) {
+        FileProperties fp = index.get(fileName);
+        if ((fp == null) || !fp.storeIsCompleted() || fp.isErasureCoded() || (fp.getCount() >= r)) {
+            underReplicated.remove(fileName);
+            return;
+        }
+
+        if (underReplicated.add(fileName)) {
+            System.err.println("File " + fileName + " has " + fp.getCount() + " of " + r + " replicas");
+        }
+        replicate(fileName);
+    }
+
+    /**
+     * Copies a file from one of its dstores to as many others as it is missing, picked as for a new store. The
+     * dstore holding it is sent REBALANCE 1 filename n port1 ... portn 0, and each new dstore acknowledges its copy
+     * with a STORE_ACK, as if a client had stored it. If some of them don't, the file is copied again at the next
+     * rebalance.
+     */
+    public static void replicate(String fileName) {
+        FileProperties fp = index.get(fileName);
+        if ((fp == null) || !fp.storeIsCompleted() || fp.isErasureCoded() || !replicating.add(fileName)) {
+            return;
+        }
+
+        List<NetworkController.DstoreThread> sources = availableDstores(fp);
+        List<NetworkController.DstoreThread> targets = getActiveDstoresSorted(activeDstores.size(), fp.getFileSize())
+                .stream()
+                .filter(dstore -> !fp.hasDstore(dstore))
+                .limit(Math.max(0, r - fp.getCount()))
+                .toList();
+
+        if (sources.isEmpty() || targets.isEmpty()) {
+            replicating.remove(fileName);
+            return;
+        }
+
+        StringBuilder ports = new StringBuilder();
+        for (NetworkController.DstoreThread dstore : targets) {
+            ports.append(" ").append(dstore.getPort());
+        }
+
+        List<CompletableFuture<Void>> acks = expectStoreAcks(fileName, targets);
+        sources.get(0).communicate(Protocol.REBALANCE_TOKEN + " 1 " + fileName + " " + targets.size() + ports + " 0");
+
+        awaitStoreAcks(fileName, fp, targets, acks, fp.getFileSize(), targets.size(),
+                () -> System.out.println("Copied " + fileName + " to" + ports), () -> {})
+                .thenRun(() -> {
+                    replicating.remove(fileName);
+                    if (fp.getCount() >= r) {
+                        underReplicated.remove(fileName);
+                    }
+                });
+    }
+
+    /**
+     * Copies the files that are missing replicas, every rebalancePeriod seconds
+     */
+    private static void rebalance() {
+        if (!underReplicated.isEmpty()) {
+            System.out.println("Rebalancing " + underReplicated.size() + " files with fewer than " + r + " replicas");
+            for (String fileName : underReplicated) {
+                checkReplication(fileName);
+            }
+        }
+        clock.schedule(rebalancePeriod * 1000L, Controller::rebalance);
+    }
+
     public static void loadOp(Message msg) {
 
         String fileName = msg.getContent().split(" ")[1];
@@ -215,12 +614,52 @@ public class Controller {
 
         fileIndexToBeLoad.get(msg.getSender()).put(fileName, 0);
 
-        load(msg, 0);
+        if (index.get(fileName).isErasureCoded()) {
+            loadErasureCoded(msg);
+        } else {
+            load(msg, 0);
+        }
+    }
+
+    /**
+     * Replies with LOAD_EC_FROM filesize k m i:port ... listing every shard that is still available, so the client can
+     * fetch any k of them and rebuild the file
+     * @param msg LOAD or LOCATE message for an erasure coded file
+     */
+    public static void loadErasureCoded(Message msg) {
+        String fileName = msg.getContent().split(" ")[1];
+        FileProperties fp = index.get(fileName);
+
+        StringBuilder shards = new StringBuilder();
+        int available = 0;
+        for (int i = 0; i < fp.getDataShards() + fp.getParityShards(); i++) {
+            NetworkController.DstoreThread dstore = fp.getShard(i);
+            if ((dstore != null) && !dstore.isSuspected()) {
+                shards.append(" ").append(i).append(":").append(dstore.getPort());
+                available++;
+            }
+        }
+
+        if (available < fp.getDataShards()) {
+            ControllerLogger.getInstance().loadFailed(fileName, available);
+            msg.getSender().communicate(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
+        msg.getSender().communicate(Protocol.LOAD_EC_FROM_TOKEN + " " + fp.getFileSize() + " "
+                + fp.getDataShards() + " " + fp.getParityShards() + shards);
     }
 
     public static void handleReload(Message msg) {
 
         String fileName = msg.getContent().split(" ")[1];
+
+        // shards are not interchangeable, the client already got all of them in LOAD_EC_FROM
+        if ((index.get(fileName) != null) && index.get(fileName).isErasureCoded()) {
+            msg.getSender().communicate(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
         int currentIndex = fileIndexToBeLoad.get(msg.getSender()).get(fileName);
 
         fileIndexToBeLoad.get(msg.getSender()).put(fileName, currentIndex + 1);
@@ -230,10 +669,16 @@ public class Controller {
     public static void load(Message msg, int i) {
         String fileName = msg.getContent().split(" ")[1];
         FileProperties fp = index.get(fileName);
-        int fileSize = fp.getFileSize();
+
+        // a RELOAD can come after the file was removed
+        if ((fp == null) || !fp.storeIsCompleted()) {
+            msg.getSender().communicate(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        long fileSize = fp.getFileSize();
 
         try {
-            int dstorePort = fp.getDstores().get(i).getPort();
+            int dstorePort = availableDstores(fp).get(i).getPort();
             msg.getSender().communicate(Protocol.LOAD_FROM_TOKEN + " " + dstorePort + " " + fileSize);
         } catch (IndexOutOfBoundsException e) {
             System.err.println("Index larger than number of dstores");
@@ -241,118 +686,335 @@ public class Controller {
         }
     }
 
+    /**
+     * Replies with LOCATIONS filesize version port1 port2 ..., listing every dstore holding the file, so the client can
+     * fetch different ranges of the file from different dstores in parallel, or cache where the file is
+     * @param msg LOCATE message
+     */
+    public static void locateOp(Message msg) {
+        String fileName = msg.getContent().split(" ")[1];
+        FileProperties fp = index.get(fileName);
+
+        // for an erasure coded file the client needs to know which shard each dstore has
+        if (fp.isErasureCoded()) {
+            loadErasureCoded(msg);
+            return;
+        }
+
+        List<NetworkController.DstoreThread> dstores = availableDstores(fp);
+        if (dstores.isEmpty()) {
+            msg.getSender().communicate(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
+        StringBuilder ports = new StringBuilder();
+        for (NetworkController.DstoreThread dstore : dstores) {
+            ports.append(" ").append(dstore.getPort());
+        }
+
+        msg.getSender().communicate(Protocol.LOCATIONS_TOKEN + " " + fp.getFileSize() + " " + fp.getVersion() + ports);
+    }
+
     public static void removeOp(Message msg) {
         String fileName = msg.getContent().split(" ")[1];
+        FileProperties fp = index.get(fileName);
 
-        index.get(fileName).setStatus(FileProperties.FileStatus.REMOVE_IN_PROGRESS);
+        // another remove of the file may have started since it was checked
+        if (!fp.transition(FileProperties.FileStatus.STORE_COMPLETE, FileProperties.FileStatus.REMOVE_IN_PROGRESS)) {
+            msg.getSender().communicate(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
+        }
+        invalidate(fileName, fp.getVersion());
+        publish(Protocol.INDEX_REMOVE_TOKEN + " " + fileName);
+
+        // tell all the dstores to remove a file, removing each of them from the index as it acknowledges it. None can
+        // be added from now on, so no dstore is left holding it.
+        List<NetworkController.DstoreThread> dstores = fp.getDstores();
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        List<CompletableFuture<Void>> removed = new ArrayList<>();
+        for (NetworkController.DstoreThread dstore : dstores) {
+            CompletableFuture<Void> ack = dstore.expectRemoveAck(fileName);
+            acks.add(ack);
+            removed.add(ack.thenRun(() -> {
+                fp.removeDstore(dstore);
+                ControllerLogger.getInstance().removeFromDstoreCompleted(fileName, dstore.getPort());
+            }));
 
-        // tell all the dstores to remove a file
-        for (NetworkController.DstoreThread dstore : index.get(fileName).getDstores()) {
             dstore.communicate(Protocol.REMOVE_TOKEN + " " + fileName);
         }
 
-        // this should be always equal to r, but just in case
-        int nDstores = index.get(fileName).getDstores().size();
+        CompletableFuture<Void> all = CompletableFuture.allOf(removed.toArray(new CompletableFuture<?>[0]));
+        clock.schedule(timeout, () -> all.completeExceptionally(new TimeoutException()));
+
+        all.whenComplete((result, e) -> {
+            if (e == null) {
+                fp.transition(FileProperties.FileStatus.REMOVE_IN_PROGRESS, FileProperties.FileStatus.REMOVE_COMPLETE);
+                msg.getSender().communicate(Protocol.REMOVE_COMPLETE_TOKEN);
+
+                // the file may have been stored again since the removal completed
+                index.remove(fileName, fp);
+                ControllerLogger.getInstance().removeComplete(fileName);
+            } else {
+                // we leave it as REMOVE_IN_PROGRESS
+                for (int i = 0; i < dstores.size(); i++) {
+                    dstores.get(i).cancelAck(fileName, acks.get(i));
+                }
+            }
+        });
+    }
 
-        CountDownLatch latch = new CountDownLatch(nDstores);
+    /**
+     * Injects faults into the Controller's connection to a dstore, e.g. to delay or lose its acks.
+     * FAULTS port spec replaces the faults of that dstore (see FaultInjector.configure), and FAULTS port removes them.
+     * Only accepted if the Controller was started with faults=runtime.
+     * @param msg FAULTS message
+     */
+    public static void faultsOp(Message msg) {
+        if (!runtimeFaults) {
+            System.err.println("Refusing faults, as the Controller was not started with faults=runtime");
+            msg.getSender().communicate(Protocol.ERROR_FAULTS_DISABLED_TOKEN);
+            return;
+        }
 
-        ExecutorService handleRemoveAcks = Executors.newFixedThreadPool(nDstores);
-        for (NetworkController.DstoreThread dstore : index.get(fileName).getDstores()) {
-            handleRemoveAcks.submit(() -> {
-                dstore.awaitForRemoveAcks(fileName);
+        String[] args = msg.getContent().split(" ", 3);
+        int port = Integer.parseInt(args[1]);
 
-//                synchronized (latch) {
-                    latch.countDown();
-//                }
+        for (NetworkController.DstoreThread dstore : activeDstores) {
+            if (dstore.getPort() == port) {
+                dstore.getFaults().configure((args.length > 2) ? args[2] : "");
+                msg.getSender().communicate(Protocol.ACK_TOKEN);
+                return;
+            }
+        }
+        msg.getSender().communicate(Protocol.ERROR_UNKNOWN_DSTORE_TOKEN);
+    }
 
-                synchronized (index) {
-                    index.get(fileName).removeDstore(dstore);
+    /**
+     * Makes the connection a follower: sends it the partition map and every file that can be read, as INDEX_PUT, then
+     * every change from then on
+     * @param msg FOLLOW message
+     */
+    public static void followOp(Message msg) {
+        ConnectionThread follower = msg.getSender();
+
+        // nothing can be published until the follower has the whole index, or it could get changes in the wrong order
+        synchronized (followers) {
+            follower.communicate(((partitions != null) ? partitions : new Partitions(cport)).toReply());
+            for (String fileName : index.keySet()) {
+                String put = indexPut(fileName);
+                if (put != null) {
+                    follower.communicate(put, false);
                 }
-                ControllerLogger.getInstance().removeFromDstoreCompleted(fileName, dstore.getPort());
-            });
+            }
+            follower.communicate(Protocol.INDEX_SYNC_TOKEN, false);
+            followers.add(follower);
+        }
+        System.out.println("New follower with " + index.size() + " files");
+    }
+
+    /**
+     * @return INDEX_PUT filename filesize version datashards port1 port2 ..., with the dstores holding the file (or its
+     * shards) that are not suspected to have failed, or null if the file can't be read
+     */
+    private static String indexPut(String fileName) {
+        FileProperties fp = index.get(fileName);
+        if ((fp == null) || !fp.storeIsCompleted()) {
+            return null;
         }
 
-        ExecutorService awaiter = Executors.newSingleThreadExecutor();
-        awaiter.submit(() -> {
-            try {
-                if (latch.await(timeout, TimeUnit.MILLISECONDS)) {
-                    synchronized (index) {
-                        index.get(fileName).setStatus(FileProperties.FileStatus.REMOVE_COMPLETE);
-                    }
+        StringBuilder put = new StringBuilder(Protocol.INDEX_PUT_TOKEN + " " + fileName + " " + fp.getFileSize() + " "
+                + fp.getVersion() + " " + fp.getDataShards());
+        for (NetworkController.DstoreThread dstore : availableDstores(fp)) {
+            put.append(" ").append(dstore.getPort());
+        }
+        return put.toString();
+    }
 
-                    msg.getSender().communicate(Protocol.REMOVE_COMPLETE_TOKEN);
+    private static void publishPut(String fileName) {
+        synchronized (followers) {
+            String put = indexPut(fileName);
+            if (put != null) {
+                publish(put);
+            }
+        }
+    }
 
-                    synchronized (index) {
-                        index.remove(fileName);
-                    }
-                    ControllerLogger.getInstance().removeComplete(fileName);
+    /**
+     * Sends a change of the index to every follower, dropping those whose connection failed
+     */
+    private static void publish(String change) {
+        synchronized (followers) {
+            for (ConnectionThread follower : followers) {
+                follower.communicate(change, false);
+                if (follower.hasFailed()) {
+                    followers.remove(follower);
                 }
-            } catch (InterruptedException e) {
-                // Do nothing, we will leave it as REMOVE_IN_PROGRESS
             }
-        });
+        }
+    }
+
+    /**
+     * Tells the followers every change so far has been sent, every syncIntervalMillis
+     */
+    private static void syncFollowers() {
+        if (!followers.isEmpty()) {
+            publish(Protocol.INDEX_SYNC_TOKEN);
+        }
+        clock.schedule(syncIntervalMillis, Controller::syncFollowers);
+    }
+
+    /**
+     * Tells every subscribed client to drop the cached location of a file
+     */
+    public static void invalidate(String fileName, long version) {
+        for (ConnectionThread subscriber : subscribers) {
+            subscriber.communicate(Protocol.INVALIDATE_TOKEN + " " + fileName + " " + version, false);
+            if (subscriber.hasFailed()) {
+                subscribers.remove(subscriber);
+            }
+        }
     }
 
+    /**
+     * Lists the files this controller is in charge of, or with LIST prefix only those whose name starts with prefix.
+     * With several controllers, each of them has to be asked.
+     */
     public static void listOp(Message msg) {
+        String prefix = msg.getContent().substring(Protocol.LIST_TOKEN.length()).trim();
         StringBuilder fileList = new StringBuilder();
 
-        for (String fileName : index.keySet()) {
-            if (index.get(fileName).storeIsCompleted()) {
-                fileList.append(fileName).append(" ");
+        for (Map.Entry<String, FileProperties> entry : index.tailMap(prefix).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (entry.getValue().storeIsCompleted()) {
+                fileList.append(entry.getKey()).append(" ");
             }
         }
 
         msg.getSender().communicate(Protocol.LIST_TOKEN + " " + fileList.toString().trim());
     }
 
-    public static void addDstore(NetworkController.DstoreThread dstore) {
-        activeDstores.add(dstore);
+    /**
+     * Replies to LIST_PAGE limit [prefix=p] [after=name] with one page of the files this controller is in charge of
+     * (see ListPage)
+     */
+    public static void listPageOp(Message msg) {
+        ListPage request = ListPage.parse(msg.getContent());
+        msg.getSender().communicate(request.reply(index, FileProperties::storeIsCompleted, maxListPage));
     }
 
-
     /**
-     * Removes a Dstore from every entry in the index
-     * @param dstore dstore to be removed from the system
+     * Checks the dstores every 100 ms
      */
-    public static void removeDstore(NetworkController.DstoreThread dstore) {
+    private static void monitorDstores() {
+        checkDstores();
+        clock.schedule(100, Controller::monitorDstores);
+    }
 
-        for (FileProperties fp : index.values()) {
-            if (fp.getDstores().contains(dstore)) {
-                fp.removeDstore(dstore);
+    /**
+     * Logs every dstore that became suspected or recovered since the last check
+     */
+    private static void checkDstores() {
+        for (NetworkController.DstoreThread dstore : activeDstores) {
+            if (dstore.updateSuspected()) {
+                if (dstore.isSuspected()) {
+                    System.err.println("Dstore " + dstore.getPort() + " is suspected to have failed");
+                } else {
+                    System.out.println("Dstore " + dstore.getPort() + " is sending heartbeats again");
+                }
             }
         }
+    }
 
-        activeDstores.remove(dstore);
+    /**
+     * @return dstores storing a file that are not suspected to have failed, in the order they were added
+     */
+    private static List<NetworkController.DstoreThread> availableDstores(FileProperties fp) {
+        return fp.getDstores().stream().filter(dstore -> !dstore.isSuspected()).toList();
     }
 
-    public static List<NetworkController.DstoreThread> getRActiveDstoresSorted() {
+    public static void addDstore(NetworkController.DstoreThread dstore) {
+        activeDstores.add(dstore);
+    }
 
-        HashMap<NetworkController.DstoreThread, Integer> dstoresToNFiles = new HashMap<>();
+    /**
+     * Counts a dstore that rejoined with the files it kept from a previous run as holding those of them that are still
+     * stored, so they can be served from it again. Files the index doesn't have, or has with another size or erasure
+     * coded, are left alone.
+     * @param msg INVENTORY name:size ... message from a dstore, where the size is -1 if the dstore doesn't know it
+     */
+    public static void inventoryOp(Message msg) {
+        if (!(msg.getSender() instanceof NetworkController.DstoreThread dstore)) {
+            throw new IllegalArgumentException("Inventory from a client");
+        }
 
-        // add dstores in the index (i.e. storing at least one file)
-        for (FileProperties fp : index.values()) {
-            for (NetworkController.DstoreThread dstore : fp.getDstores()) {
-                if (dstoresToNFiles.containsKey(dstore)) {
-                    dstoresToNFiles.put(dstore, dstoresToNFiles.get(dstore) + 1);
-                } else {
-                    dstoresToNFiles.put(dstore, 1);
+        String[] files = msg.getContent().split(" ");
+        int added = 0;
+        for (int i = 1; i < files.length; i++) {
+            // names may contain colons, but sizes don't
+            int colon = files[i].lastIndexOf(':');
+            String fileName = files[i].substring(0, colon);
+            long size = Long.parseLong(files[i].substring(colon + 1));
+
+            FileProperties fp = index.get(fileName);
+            if ((fp == null) || !fp.storeIsCompleted() || fp.isErasureCoded() || fp.hasDstore(dstore)
+                    || ((size >= 0) && (size != fp.getFileSize()))) {
+                continue;
+            }
+            if (fp.addDstore(dstore)) {
+                added++;
+                publishPut(fileName);
+                if (fp.getCount() >= r) {
+                    underReplicated.remove(fileName);
                 }
             }
         }
+        System.out.println("Dstore " + dstore.getPort() + " rejoined with " + added + " files of the index");
+    }
 
-        // add dstores in activeDstores, but not in the index (i.e. storing no files)
-        // this should have the highest priority
-        for (NetworkController.DstoreThread dstore : activeDstores) {
-            if (!dstoresToNFiles.containsKey(dstore)) {
-                dstoresToNFiles.put(dstore, 0);
+
+    /**
+     * Removes a Dstore from every entry in the index
+     * @param dstore dstore to be removed from the system
+     */
+    public static void removeDstore(NetworkController.DstoreThread dstore) {
+
+        for (Map.Entry<String, FileProperties> entry : index.entrySet()) {
+            if (entry.getValue().removeDstore(dstore) && entry.getValue().storeIsCompleted()) {
+                publishPut(entry.getKey());
+                if (!entry.getValue().isErasureCoded()) {
+                    underReplicated.add(entry.getKey());
+                }
             }
         }
 
-        return dstoresToNFiles
-                .keySet()
+        activeDstores.remove(dstore);
+    }
+
+    public static List<NetworkController.DstoreThread> getRActiveDstoresSorted(long bytesPerDstore) {
+        return getActiveDstoresSorted(r, bytesPerDstore);
+    }
+
+    /**
+     * Picks where to place a file. Dstores that are suspected to have failed or reported they don't have room for it
+     * are left out, and the rest are ordered by how full they are (to the nearest percent), then by how many
+     * operations they have queued, then by how many files they store (as counted by FileProperties, so the index isn't
+     * walked for every store), and finally by port, so the same state always gives the same placement.
+     * @param n number of dstores needed
+     * @param bytesPerDstore bytes each of them will have to store
+     * @return up to n active dstores with room for the file, least loaded first
+     */
+    public static List<NetworkController.DstoreThread> getActiveDstoresSorted(int n, long bytesPerDstore) {
+        return activeDstores
                 .stream()
-                .sorted(Comparator.comparing(dstoresToNFiles::get))
-                .limit(r)
+                .filter(dstore -> !dstore.isSuspected() && (dstore.getHeadroom() >= bytesPerDstore))
+                .sorted(Comparator
+                        .comparing((NetworkController.DstoreThread dstore) -> (int) (dstore.getUtilisation() * 100))
+                        .thenComparing(NetworkController.DstoreThread::getQueueDepth)
+                        .thenComparing(dstore -> dstore.getStoredFiles().get())
+                        .thenComparing(NetworkController.DstoreThread::getPort))
+                .limit(n)
                 .toList();
     }
 }
@@ -1,11 +1,13 @@
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.nio.file.Files;
-import java.util.Arrays;
-import java.util.Objects;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Dstore {
 
@@ -19,6 +21,12 @@ public class Dstore {
      */
     protected static int cport;
 
+    /**
+     * Controllers sharing the files by the hash of their name, each of them told about the files it is in charge of.
+     * Just the one at cport unless the controllers option is given.
+     */
+    protected static Partitions partitions;
+
     /**
      * How long to wait (in ms) when a process expects a response from another process
      */
@@ -32,10 +40,95 @@ public class Dstore {
     /**
      * Messages received from the connection threads that need to be handled
      */
-    protected static final ConcurrentLinkedQueue<Message> tasks = new ConcurrentLinkedQueue<>();
+    protected static final BlockingQueue<Message> tasks = new LinkedBlockingQueue<>();
+
+    /**
+     * Number of threads for uploads, loads and removes (see DstoreScheduler.Lane)
+     */
+    protected static int[] laneThreads = {16, 2 * Runtime.getRuntime().availableProcessors(), 2};
+
+    /**
+     * Maximum number of client operations waiting or running in each lane before new ones are rejected
+     */
+    protected static int queueLimit = 256;
+
+    /**
+     * Runs the operations requested by clients and the Controller
+     */
+    protected static DstoreScheduler scheduler;
+
+    /**
+     * When stored files are flushed to disk before being acknowledged to the Controller
+     */
+    protected static Durability.Mode durabilityMode = Durability.Mode.NONE;
+
+    /**
+     * How often (in ms) stores are flushed together in group commit mode
+     */
+    protected static int groupCommitMillis = 5;
+
+    protected static Durability durability;
+
+    /**
+     * Space (in bytes) this dstore may use for files, or 0 to use whatever is free on its disk
+     */
+    protected static long capacity = 0;
+
+    /**
+     * How often (in ms) the dstore reports its capacity, free space and load to the Controller. The reports are also
+     * the dstore's heartbeats, so the shorter the interval, the sooner the Controller notices the dstore is gone.
+     */
+    protected static int statusIntervalMillis = 250;
+
+    /**
+     * Bytes taken on disk by the files stored here
+     */
+    protected static final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * Whether the files already in fileFolder are kept and served when the dstore starts, instead of being deleted
+     */
+    protected static boolean keepData = false;
+
+    /**
+     * Whether files kept at startup are checked (compressed ones decompressed, chunks hashed) before being served
+     */
+    protected static boolean verifyData = false;
+
+    /**
+     * Number of threads used to scan or clean fileFolder at startup
+     */
+    protected static int scanThreads = 16;
+
+    /**
+     * Size of the content of each file stored here, or -1 if it is not known yet (a compressed file kept from a
+     * previous run, until it is decompressed)
+     */
+    protected static final ConcurrentHashMap<String, Long> fileSizes = new ConcurrentHashMap<>();
+
+    /**
+     * Files listed in each INVENTORY message
+     */
+    private static final int INVENTORY_BATCH = 1000;
 
     protected static DstoreListener dstoreListener;
 
+    /**
+     * Faults injected into this dstore's connections and disk operations, set with the faults option or FAULTS
+     */
+    protected static final FaultInjector faults = new FaultInjector();
+
+    /**
+     * Whether FAULTS messages are accepted, which is only the case if the dstore was started with faults=runtime or
+     * faults=spec, so nobody can make a dstore misbehave unless it was meant to be tested that way
+     */
+    protected static boolean runtimeFaults = false;
+
+    /**
+     * Chunks and recipes of the files stored with STORE_DEDUP
+     */
+    protected static ChunkStore chunkStore;
+
     public static void setDstoreListener(DstoreListener dstoreListener) {
         Dstore.dstoreListener = dstoreListener;
     }
@@ -47,142 +140,546 @@ public class Dstore {
         timeout = Integer.parseInt(args[2]);
         fileFolder = args[3];
 
-        // Firstly, we will delete any files in the directory
-        cleanDir(fileFolder);
+        // optional settings, given as key=value after the mandatory arguments
+        for (int i = 4; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            switch (option[0]) {
+                case "uploadThreads" -> laneThreads[DstoreScheduler.Lane.UPLOADS.ordinal()] = Integer.parseInt(option[1]);
+                case "readThreads" -> laneThreads[DstoreScheduler.Lane.READS.ordinal()] = Integer.parseInt(option[1]);
+                case "metadataThreads" -> laneThreads[DstoreScheduler.Lane.METADATA.ordinal()] = Integer.parseInt(option[1]);
+                case "queueLimit" -> queueLimit = Integer.parseInt(option[1]);
+                case "durability" -> durabilityMode = Durability.Mode.valueOf(option[1].toUpperCase());
+                case "groupCommitMs" -> groupCommitMillis = Integer.parseInt(option[1]);
+                case "capacity" -> capacity = Long.parseLong(option[1]);
+                case "statusIntervalMs" -> statusIntervalMillis = Integer.parseInt(option[1]);
+                case "keep" -> keepData = Boolean.parseBoolean(option[1]);
+                case "verify" -> verifyData = Boolean.parseBoolean(option[1]);
+                case "scanThreads" -> scanThreads = Integer.parseInt(option[1]);
+                case "faults" -> {
+                    runtimeFaults = true;
+                    if (!option[1].equals("runtime")) {
+                        faults.configure(option[1]);
+                    }
+                }
+                case "controllers" -> partitions = Partitions.parse(option[1]);
+                default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+
+        if (partitions == null) {
+            partitions = new Partitions(cport);
+        }
+
+        scheduler = new DstoreScheduler(laneThreads, queueLimit);
+        durability = new Durability(durabilityMode, groupCommitMillis);
+
+        long startTime = System.nanoTime();
+
+        // Firstly, we will delete any files in the directory, unless we were asked to keep them
+        if (!keepData) {
+            cleanDir(fileFolder);
+        }
+
+        try {
+            chunkStore = new ChunkStore(fileFolder);
+            Files.createDirectories(compressedFile("").toPath());
+
+            if (keepData) {
+                FolderScan scan = new FolderScan(fileFolder, chunkStore, fileSizes, scanThreads, verifyData);
+                scan.scan();
+                usedBytes.set(scan.getDiskBytes());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // we only join the Controller once the files are ready to be served
+        System.out.println("Dstore ready in " + (System.nanoTime() - startTime) / 1_000_000 + " ms with "
+                + fileSizes.size() + " files (" + usedBytes.get() + " bytes)");
 
         // We start a thread that will constantly listen to all incoming connections
-        Thread incomingConnections = new Thread(new NetworkDstore(port, cport, timeout, tasks));
+        Thread incomingConnections = new Thread(new NetworkDstore(port, partitions, timeout, tasks));
         incomingConnections.start();
 
-        // This is the main execution loop
+        // This is the main execution loop, which waits for messages instead of polling for them
         while (true) {
-            Message msgInfo = tasks.poll();
-
-            if (msgInfo != null) {
+            Message msgInfo;
+            try {
+                msgInfo = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
 
-                try {
-                    handleMessage(msgInfo);
-                } catch (Exception e) {
-                    System.err.println("Could not handle message " + msgInfo.getContent());
-                    e.printStackTrace();
-                }
+            try {
+                handleMessage(msgInfo);
+            } catch (Exception e) {
+                System.err.println("Could not handle message " + msgInfo.getContent());
+                e.printStackTrace();
             }
         }
     }
 
     public static void cleanDir(String fileFolder) {
-        File directory = new File(fileFolder);
+        try {
+            int deleted = FolderScan.clean(fileFolder, scanThreads);
+            System.out.println("Removed " + deleted + " files from " + fileFolder);
+        } catch (IOException e) {
+            System.err.println("Could not clean " + fileFolder + ": " + e);
+        }
+    }
 
-        for (File file : Objects.requireNonNull(directory.listFiles())) {
-            file.delete();
-            System.out.println("Removing file " + file);
+    /**
+     * @return INVENTORY name:size ... messages listing every file stored here, INVENTORY_BATCH of them in each, where
+     * the size is -1 if it is not known yet
+     */
+    public static List<String> inventory() {
+        List<String> messages = new ArrayList<>();
+        StringBuilder message = new StringBuilder(Protocol.INVENTORY_TOKEN);
+        int inMessage = 0;
+
+        for (Map.Entry<String, Long> file : fileSizes.entrySet()) {
+            message.append(" ").append(file.getKey()).append(":").append(file.getValue());
+            if (++inMessage == INVENTORY_BATCH) {
+                messages.add(message.toString());
+                message = new StringBuilder(Protocol.INVENTORY_TOKEN);
+                inMessage = 0;
+            }
         }
+        if (inMessage > 0) {
+            messages.add(message.toString());
+        }
+        return messages;
+    }
+
+    /**
+     * @return capacity, free bytes and queue depth (operations waiting or running), as sent in JOIN and STATUS
+     */
+    public static String status() {
+        long usable = new File(fileFolder).getUsableSpace();
+        long used = usedBytes.get();
+
+        long total = (capacity > 0) ? capacity : usable + used;
+        long free = (capacity > 0) ? Math.min(usable, capacity - used) : usable;
+
+        return total + " " + Math.max(0, free) + " " + (scheduler.queueDepth() + scheduler.activeCount());
+    }
+
+    /**
+     * @return where a file received with STORE_COMPRESSED is kept, still compressed
+     */
+    public static File compressedFile(String fileName) {
+        return new File(fileFolder + "/.compressed/" + fileName);
+    }
+
+    /**
+     * @return whether a file is stored here, either as a plain file, compressed or as a recipe of chunks
+     */
+    public static boolean isStored(String fileName) {
+        return new File(fileFolder + "/" + fileName).exists()
+                || compressedFile(fileName).exists()
+                || chunkStore.hasRecipe(fileName);
+    }
+
+    /**
+     * @return size of the content of a stored file, whichever way it is stored
+     */
+    public static long storedSize(String fileName) throws IOException {
+        Long known = fileSizes.get(fileName);
+        if ((known != null) && (known >= 0)) {
+            return known;
+        }
+
+        if (chunkStore.hasRecipe(fileName)) {
+            return chunkStore.size(fileName);
+        }
+
+        if (compressedFile(fileName).exists()) {
+            long size;
+            try (InputStream in = openStored(fileName, 0)) {
+                size = in.transferTo(OutputStream.nullOutputStream());
+            }
+            // so a kept file is only decompressed once to find its size
+            fileSizes.replace(fileName, -1L, size);
+            return size;
+        }
+
+        return new File(fileFolder + "/" + fileName).length();
+    }
+
+    /**
+     * Opens the content of a stored file, whichever way it is stored
+     * @param offset position of the first byte to read
+     * @return the content from offset onwards, or null if the file is not stored here
+     */
+    public static InputStream openStored(String fileName, long offset) throws IOException {
+        faults.stallDisk();
+
+        if (chunkStore.hasRecipe(fileName)) {
+            return chunkStore.open(fileName, offset);
+        }
+
+        if (compressedFile(fileName).exists()) {
+            InputStream in = Compression.decompress(new BufferedInputStream(new FileInputStream(compressedFile(fileName))));
+            in.skipNBytes(offset);
+            return in;
+        }
+
+        File file = new File(fileFolder + "/" + fileName);
+        if (!file.exists()) {
+            return null;
+        }
+
+        InputStream in = new FileInputStream(file);
+        in.skip(offset);
+        return in;
     }
 
     private static void handleMessage(Message msg) {
-        if (msg.getContent().startsWith(Protocol.STORE_TOKEN)) {
-            store(msg);
+        if (msg.getContent().startsWith(Protocol.FAULTS_TOKEN)) {
+            if (!runtimeFaults) {
+                System.err.println("Refusing faults, as the dstore was not started with the faults option");
+                msg.getSender().communicate(Protocol.ERROR_FAULTS_DISABLED_TOKEN);
+                return;
+            }
+            // FAULTS spec replaces the faults injected (see FaultInjector.configure), and FAULTS on its own removes them
+            String[] args = msg.getContent().split(" ", 2);
+            faults.configure((args.length > 1) ? args[1] : "");
+            msg.getSender().communicate(Protocol.ACK_TOKEN);
+        } else if (msg.getContent().startsWith(Protocol.STORE_DEDUP_TOKEN)) {
+            schedule(DstoreScheduler.Lane.UPLOADS, msg, new DedupStoreThread(msg));
+        } else if (msg.getContent().startsWith(Protocol.STORE_COMPRESSED_TOKEN)) {
+            schedule(DstoreScheduler.Lane.UPLOADS, msg, new CompressedStoreThread(msg));
+        } else if (msg.getContent().startsWith(Protocol.LOAD_COMPRESSED_TOKEN)) {
+            schedule(DstoreScheduler.Lane.READS, msg, () -> loadCompressed(msg));
+        } else if (msg.getContent().startsWith(Protocol.REBALANCE_STORE_TOKEN)) {
+            // a copy of a file another dstore has, which we acknowledge to the Controller like a STORE
+            schedule(DstoreScheduler.Lane.UPLOADS, msg, new StoreThread(msg));
+        } else if (msg.getContent().startsWith(Protocol.REBALANCE_TOKEN)) {
+            // copies mostly wait on the receiving dstore, so they must not hold up the loads
+            schedule(DstoreScheduler.Lane.UPLOADS, msg, () -> rebalance(msg));
+        } else if (msg.getContent().startsWith(Protocol.STORE_TOKEN)) {
+            // this covers STORE_CHAIN as well. The store thread listens for the client's file transfer and then
+            // tells the Controller, so it can update the index.
+            schedule(DstoreScheduler.Lane.UPLOADS, msg, new StoreThread(msg));
         } else if (msg.getContent().startsWith(Protocol.LOAD_DATA_TOKEN)) {
-            load(msg);
+            schedule(DstoreScheduler.Lane.READS, msg, () -> load(msg));
         } else if (msg.getContent().startsWith(Protocol.REMOVE_TOKEN)) {
-            remove(msg);
+            schedule(DstoreScheduler.Lane.METADATA, msg, () -> remove(msg));
         }
     }
 
-    private static void store(Message msg) {
+    /**
+     * Hands an operation to the scheduler. If it is rejected because the dstore is overloaded, the connection that
+     * asked for it is closed, so the client fails fast instead of waiting for its timeout.
+     */
+    private static void schedule(DstoreScheduler.Lane lane, Message msg, Runnable operation) {
+        boolean fromController = msg.getSender() instanceof NetworkDstore.ControllerThread;
 
-        // We'll start a new thread to listen for the client's file transfer and then tell the Controller, so it
-        // can update the index.
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        executorService.submit(new StoreThread(msg));
+        if (!scheduler.submit(lane, fromController, operation)) {
+            System.err.println("Too many operations in lane " + lane + ", rejecting " + msg.getContent());
+            try {
+                msg.getSender().closeConnection();
+            } catch (IOException e) {
+                System.err.println("Could not close socket");
+            }
+        }
     }
 
-    private static void load(Message msg) {
+    /**
+     * Sends a file to a client. LOAD_DATA name sends the whole file, while LOAD_DATA name offset length only sends
+     * that range of it, so a client can split a download between dstores or resume one.
+     * @param msg LOAD_DATA message
+     */
+    public static void load(Message msg) {
 
-        String fileName = msg.getContent().split(" ")[1];
+        String[] args = msg.getContent().split(" ");
+        String fileName = args[1];
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        executorService.submit(() -> {
-            try {
-                File file = new File(fileFolder + "/" + fileName);
-                if (file.exists()) {
-                    byte[] fileContent = Files.readAllBytes(file.toPath());
-                    msg.getSender().writeData(fileContent);
-                } else {
-                    System.err.println("File " + fileName + " does not exists");
-                }
+        try {
+            long offset = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+            long length = (args.length > 3) ? Long.parseLong(args[3]) : Long.MAX_VALUE;
 
-                // We close the connection with the client after the load op
-                try {
-                    msg.getSender().closeConnection();
-                } catch (IOException e) {
-                    System.err.println("Could not close socket");
+            InputStream in = openStored(fileName, offset);
+            if (in != null) {
+                try (in) {
+                    sendRange(msg.getSender(), in, length);
                 }
+            } else {
+                System.err.println("File " + fileName + " does not exists");
+            }
+
+            // We close the connection with the client after the load op
+            try {
+                msg.getSender().closeConnection();
             } catch (IOException e) {
-                System.err.println("Could not load file " + fileName);
-                e.printStackTrace();
+                System.err.println("Could not close socket");
+            }
+        } catch (IOException | UncheckedIOException | NumberFormatException e) {
+            System.err.println("Could not load file " + fileName);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams up to length bytes of a file to a connection, stopping early at the end of the file
+     */
+    private static void sendRange(ConnectionThread receiver, InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                break;
+            }
+            receiver.writeData(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Sends a whole file to a client that accepts compressed data. LOAD_COMPRESSED filename codec1,codec2,... is
+     * answered with a COMPRESSED_DATA codec length line followed by the bytes. Files kept compressed are sent exactly
+     * as they are on disk, without decompressing and compressing them again; other files are sent as they are, with
+     * codec NONE.
+     * @param msg LOAD_COMPRESSED message
+     */
+    private static void loadCompressed(Message msg) {
+
+        String[] args = msg.getContent().split(" ");
+        String fileName = args[1];
+        List<String> accepted = (args.length > 2) ? Arrays.asList(args[2].split(",")) : List.of();
+
+        try {
+            File compressed = compressedFile(fileName);
+            boolean sendCompressed = compressed.exists()
+                    && (accepted.contains(Compression.Codec.DEFLATE_FAST.name())
+                    || accepted.contains(Compression.Codec.DEFLATE_BEST.name()));
+
+            if (sendCompressed) {
+                // any of the deflate codecs can decompress it, so we name one the client accepts
+                String codec = accepted.contains(Compression.Codec.DEFLATE_FAST.name())
+                        ? Compression.Codec.DEFLATE_FAST.name()
+                        : Compression.Codec.DEFLATE_BEST.name();
+                msg.getSender().communicate(Protocol.COMPRESSED_DATA_TOKEN + " " + codec + " " + compressed.length());
+                try (InputStream in = new FileInputStream(compressed)) {
+                    sendRange(msg.getSender(), in, compressed.length());
+                }
+            } else if (isStored(fileName)) {
+                long size = storedSize(fileName);
+                msg.getSender().communicate(Protocol.COMPRESSED_DATA_TOKEN + " " + Compression.Codec.NONE + " " + size);
+                try (InputStream in = openStored(fileName, 0)) {
+                    sendRange(msg.getSender(), in, size);
+                }
+            } else {
+                System.err.println("File " + fileName + " does not exists");
             }
-        });
+
+            msg.getSender().closeConnection();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not load file " + fileName);
+            e.printStackTrace();
+        }
     }
 
     public static void remove(Message msg) {
 
         String fileName = msg.getContent().split(" ")[1];
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        executorService.submit(() -> {
-            try {
-                File file = new File(fileFolder + "/" + fileName);
-                if (Files.deleteIfExists(file.toPath())) {
-                    dstoreListener.fileRemoved(fileName);
-                } else {
-                    // if the file was not found we send an error and close the connection with the client
-                    dstoreListener.errorFileDoesNotExist(fileName);
-                    msg.getSender().closeConnection();
-                }
+        try {
+            if (deleteStored(fileName)) {
+                dstoreListener.fileRemoved(fileName);
+            } else {
+                // if the file was not found we send an error and close the connection with the client
+                dstoreListener.errorFileDoesNotExist(fileName);
+                msg.getSender().closeConnection();
+            }
 
+        } catch (IOException e) {
+            System.err.println("Could not remove file " + fileName);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes a stored file, whichever way it is stored
+     * @return false if the file is not stored here
+     */
+    private static boolean deleteStored(String fileName) throws IOException {
+        File file = new File(fileFolder + "/" + fileName);
+        File compressed = compressedFile(fileName);
+
+        long freed;
+        if (file.exists()) {
+            freed = file.length();
+            Files.delete(file.toPath());
+        } else if (compressed.exists()) {
+            freed = compressed.length();
+            Files.delete(compressed.toPath());
+        } else {
+            freed = chunkStore.remove(fileName);
+        }
+
+        if (freed < 0) {
+            return false;
+        }
+        usedBytes.addAndGet(-freed);
+        fileSizes.remove(fileName);
+        return true;
+    }
+
+    /**
+     * Copies files to other dstores and removes files, as the Controller asks with
+     * REBALANCE files_to_send files_to_remove, where files_to_send is number_of_files file_to_send1 file_to_send2 ...,
+     * each file_to_send is filename number_of_dstores port1 port2 ..., and files_to_remove is
+     * number_of_files filename1 filename2 ...
+     * <p>
+     * Each copy is sent with REBALANCE_STORE filename filesize, and the other dstore acknowledges it to the Controller.
+     * Once done, we reply REBALANCE_COMPLETE.
+     * @param msg REBALANCE message
+     */
+    public static void rebalance(Message msg) {
+        String[] args = msg.getContent().split(" ");
+        int i = 1;
+
+        int filesToSend = Integer.parseInt(args[i++]);
+        for (int f = 0; f < filesToSend; f++) {
+            String fileName = args[i++];
+            int nDstores = Integer.parseInt(args[i++]);
+            for (int d = 0; d < nDstores; d++) {
+                sendCopy(fileName, Integer.parseInt(args[i++]));
+            }
+        }
+
+        int filesToRemove = Integer.parseInt(args[i++]);
+        for (int f = 0; f < filesToRemove; f++) {
+            String fileName = args[i++];
+            try {
+                deleteStored(fileName);
             } catch (IOException e) {
                 System.err.println("Could not remove file " + fileName);
-                e.printStackTrace();
             }
-        });
+        }
+
+        msg.getSender().communicate(Protocol.REBALANCE_COMPLETE_TOKEN);
+    }
+
+    /**
+     * Sends a stored file to another dstore, which must acknowledge the REBALANCE_STORE before the content is sent
+     */
+    private static void sendCopy(String fileName, int port) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(timeout);
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            ConnectionThread receiver = new ConnectionThread(new FaultyTransport(new SocketTransport(socket, in, out), faults));
+
+            long size = storedSize(fileName);
+            receiver.communicate(Protocol.REBALANCE_STORE_TOKEN + " " + fileName + " " + size);
+            if (!Protocol.ACK_TOKEN.equals(receiver.readLine())) {
+                System.err.println("Dstore " + port + " did not accept a copy of " + fileName);
+                return;
+            }
+
+            try (InputStream content = openStored(fileName, 0)) {
+                if (content == null) {
+                    System.err.println("File " + fileName + " does not exists");
+                    return;
+                }
+                sendRange(receiver, content, size);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not copy " + fileName + " to dstore " + port);
+        }
     }
 
     static class StoreThread implements Runnable {
 
+        /**
+         * Size of the chunks in which the file is read from the sender and forwarded down the chain
+         */
+        private static final int CHUNK_SIZE = 64 * 1024;
+
         private final Message msg;
         private final String fileName;
         private final int fileSize;
 
+        /**
+         * Ports of the dstores further down the replication chain. It is empty for a plain STORE.
+         */
+        private final List<Integer> chain;
+
+        /**
+         * Whether this is a copy from another dstore (REBALANCE_STORE) rather than a store from a client
+         */
+        private final boolean copy;
+
         public StoreThread(Message msg) {
+            String[] args = msg.getContent().split(" ");
+
             this.msg = msg;
-            this.fileName = msg.getContent().split(" ")[1];
-            this.fileSize = Integer.parseInt(msg.getContent().split(" ")[2]);
+            this.fileName = args[1];
+            this.fileSize = Integer.parseInt(args[2]);
+            this.chain = new ArrayList<>();
+            this.copy = args[0].equals(Protocol.REBALANCE_STORE_TOKEN);
+
+            if (args[0].equals(Protocol.STORE_CHAIN_TOKEN)) {
+                for (int i = 3; i < args.length; i++) {
+                    chain.add(Integer.parseInt(args[i]));
+                }
+            }
         }
 
         @Override
         public void run() {
-            final byte[] data = new byte[fileSize];
+            final byte[] buffer = new byte[CHUNK_SIZE];
 
             try {
                 // we create a new file
                 File file = new File(fileFolder + "/" + fileName);
-                if (file.createNewFile()) {
+                if (!chunkStore.hasRecipe(fileName) && !compressedFile(fileName).exists() && file.createNewFile()) {
 
                     System.out.println("File created " + fileName);
 
+                    // the next dstore has to be ready before we let the sender start streaming to us
+                    ConnectionThread next = connectToNextInChain();
+
                     // we send the ACK so the client can start reading
                     msg.getSender().communicate(Protocol.ACK_TOKEN);
 
-                    // we read the file content from the inputStream and save it in data
-                    int n = msg.getSender().readData(data, 0, fileSize);
-                    System.out.println("Data received from Client (showing data array): " + Arrays.toString(data) + " " + n);
+                    // we read the file content chunk by chunk, write it to the file and pass it on to the next dstore
+                    int remaining = fileSize;
+                    try (OutputStream fileOut = new FileOutputStream(file)) {
+                        while (remaining > 0) {
+                            int n = msg.getSender().readData(buffer, 0, Math.min(buffer.length, remaining));
+                            if (n <= 0) {
+                                break;
+                            }
+
+                            fileOut.write(buffer, 0, n);
+                            next = forward(next, buffer, n);
+                            remaining -= n;
+                        }
+                    } finally {
+                        if (next != null) {
+                            next.closeConnection();
+                        }
+                    }
 
-                    // we write the data to the file
-                    Files.write(file.toPath(), data);
+                    if (remaining > 0) {
+                        // the sender went away before sending the whole file, so we must not acknowledge it
+                        System.err.println("File " + fileName + " was not received completely");
+                        Files.deleteIfExists(file.toPath());
+                    } else {
+                        usedBytes.addAndGet(fileSize);
+                        fileSizes.put(fileName, (long) fileSize);
 
-                    // tell the controller that we're done
-                    dstoreListener.fileStored(fileName);
+                        faults.stallDisk();
+
+                        // tell the controller that we're done, once the file is safely on disk
+                        durability.commit(file.toPath(), () -> dstoreListener.fileStored(fileName));
+                    }
 
                     // we close the connection with the client after the store op
                     try {
@@ -190,6 +687,12 @@ public class Dstore {
                     } catch (IOException e) {
                         System.err.println("Could not close socket");
                     }
+                } else if (copy && Long.valueOf(fileSize).equals(fileSizes.get(fileName))) {
+                    // the Controller asked for a copy we already have, most likely because our STORE_ACK reached it
+                    // too late, so we acknowledge it again rather than take the content twice
+                    System.out.println("Already have a copy of " + fileName);
+                    dstoreListener.fileStored(fileName);
+                    msg.getSender().closeConnection();
                 } else {
                     System.out.println("File " + fileName + " already exists");
                 }
@@ -199,5 +702,285 @@ public class Dstore {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * Opens a connection to the next reachable dstore in the chain and hands it the rest of the chain. Dstores
+         * that cannot be reached are skipped, so a single dead replica does not cut off the ones after it.
+         * @return connection to the next dstore, already acknowledged, or null if there is none
+         */
+        private ConnectionThread connectToNextInChain() {
+            while (!chain.isEmpty()) {
+                int port = chain.remove(0);
+
+                try {
+                    Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                    socket.setSoTimeout(timeout);
+
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    ConnectionThread next = new ConnectionThread(
+                            new FaultyTransport(new SocketTransport(socket, in, out), faults));
+
+                    StringBuilder request = new StringBuilder(Protocol.STORE_CHAIN_TOKEN + " " + fileName + " " + fileSize);
+                    for (int p : chain) {
+                        request.append(" ").append(p);
+                    }
+                    next.communicate(request.toString());
+
+                    if (Protocol.ACK_TOKEN.equals(next.readLine())) {
+                        return next;
+                    }
+
+                    System.err.println("Dstore " + port + " did not acknowledge " + fileName + ", skipping it");
+                    next.closeConnection();
+                } catch (IOException e) {
+                    System.err.println("Could not forward " + fileName + " to dstore " + port + ", skipping it");
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Sends a chunk to the next dstore. If it fails the rest of the chain is dropped, but we keep storing locally.
+         * @return the connection to keep forwarding to, or null if the chain is broken
+         */
+        private ConnectionThread forward(ConnectionThread next, byte[] chunk, int len) {
+            if (next == null) {
+                return null;
+            }
+
+            try {
+                next.writeData(chunk, 0, len);
+                return next;
+            } catch (IOException e) {
+                System.err.println("Lost the next dstore in the chain while forwarding " + fileName);
+                try {
+                    next.closeConnection();
+                } catch (IOException ignored) {
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stores a file sent with STORE_DEDUP filename filesize hash:length ... where the client lists the chunks of the
+     * file. We reply NEED i j ... with the positions of the chunks we don't have yet, and the client only sends those.
+     */
+    static class DedupStoreThread implements Runnable {
+
+        private final Message msg;
+        private final String fileName;
+        private final int fileSize;
+        private final List<String> hashes;
+        private final List<Integer> lengths;
+
+        public DedupStoreThread(Message msg) {
+            String[] args = msg.getContent().split(" ");
+
+            this.msg = msg;
+            this.fileName = args[1];
+            this.fileSize = Integer.parseInt(args[2]);
+            this.hashes = new ArrayList<>();
+            this.lengths = new ArrayList<>();
+
+            for (int i = 3; i < args.length; i++) {
+                String[] chunk = args[i].split(":");
+                hashes.add(chunk[0]);
+                lengths.add(Integer.parseInt(chunk[1]));
+            }
+        }
+
+        @Override
+        public void run() {
+            // chunks we hold a reference to, which must be released if the store fails
+            List<String> acquired = new ArrayList<>();
+            boolean stored = false;
+
+            try {
+                if (isStored(fileName)) {
+                    System.out.println("File " + fileName + " already exists");
+                    return;
+                }
+
+                if (lengths.stream().mapToLong(Integer::longValue).sum() != fileSize) {
+                    System.err.println("Chunks of " + fileName + " do not add up to its size");
+                    return;
+                }
+
+                // taking the references now means no other file can delete these chunks while we wait for the rest
+                StringBuilder need = new StringBuilder(Protocol.NEED_TOKEN);
+                List<Integer> needed = new ArrayList<>();
+                boolean[] sent = new boolean[hashes.size()];
+                Set<String> requested = new HashSet<>();
+                for (int i = 0; i < hashes.size(); i++) {
+                    if (chunkStore.acquire(hashes.get(i))) {
+                        acquired.add(hashes.get(i));
+                    } else if (requested.add(hashes.get(i))) {
+                        need.append(" ").append(i);
+                        needed.add(i);
+                        sent[i] = true;
+                    }
+                }
+
+                msg.getSender().communicate(need.toString());
+
+                byte[] buffer = new byte[Chunker.MAX_CHUNK_SIZE];
+                List<Path> written = new ArrayList<>();
+                for (int i : needed) {
+                    int length = lengths.get(i);
+                    if ((length > buffer.length) || (msg.getSender().readData(buffer, 0, length) < length)) {
+                        System.err.println("Chunk " + i + " of " + fileName + " was not received");
+                        return;
+                    }
+                    if (!Chunker.hash(buffer, length).equals(hashes.get(i))) {
+                        System.err.println("Chunk " + i + " of " + fileName + " does not match its hash");
+                        return;
+                    }
+
+                    if (chunkStore.add(hashes.get(i), buffer, length)) {
+                        written.add(chunkStore.chunkPath(hashes.get(i)));
+                        usedBytes.addAndGet(length);
+                    }
+                    acquired.add(hashes.get(i));
+                }
+
+                // chunks repeated within the file were only sent once, they need a reference per occurrence
+                for (int i = 0; i < hashes.size(); i++) {
+                    if (requested.contains(hashes.get(i)) && !sent[i]) {
+                        chunkStore.acquire(hashes.get(i));
+                        acquired.add(hashes.get(i));
+                    }
+                }
+
+                chunkStore.writeRecipe(fileName, hashes, lengths);
+                written.add(chunkStore.recipePath(fileName));
+                usedBytes.addAndGet(Files.size(chunkStore.recipePath(fileName)));
+                fileSizes.put(fileName, (long) fileSize);
+                stored = true;
+
+                System.out.println("File " + fileName + " stored from " + needed.size() + " new chunks out of "
+                        + hashes.size());
+
+                faults.stallDisk();
+
+                // tell the controller that we're done, once the new chunks and the recipe are safely on disk
+                durability.commit(written, () -> dstoreListener.fileStored(fileName));
+
+            } catch (IOException e) {
+                System.err.println("Could not store file " + fileName);
+                e.printStackTrace();
+            } finally {
+                if (!stored) {
+                    acquired.forEach(chunkStore::release);
+                }
+
+                // we close the connection with the client after the store op
+                try {
+                    msg.getSender().closeConnection();
+                } catch (IOException e) {
+                    System.err.println("Could not close socket");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a file sent with STORE_COMPRESSED filename filesize codec compressedsize. The file is kept compressed in
+     * fileFolder/.compressed, so it takes less space and can be served compressed without any work.
+     */
+    static class CompressedStoreThread implements Runnable {
+
+        private final Message msg;
+        private final String fileName;
+        private final int fileSize;
+        private final String codec;
+        private final int compressedSize;
+
+        public CompressedStoreThread(Message msg) {
+            String[] args = msg.getContent().split(" ");
+
+            this.msg = msg;
+            this.fileName = args[1];
+            this.fileSize = Integer.parseInt(args[2]);
+            this.codec = args[3];
+            this.compressedSize = Integer.parseInt(args[4]);
+        }
+
+        @Override
+        public void run() {
+            File file = compressedFile(fileName);
+
+            try {
+                Compression.Codec.valueOf(codec);
+
+                if (new File(fileFolder + "/" + fileName).exists() || chunkStore.hasRecipe(fileName)
+                        || !file.createNewFile()) {
+                    System.out.println("File " + fileName + " already exists");
+                    return;
+                }
+
+                msg.getSender().communicate(Protocol.ACK_TOKEN);
+
+                // the upload is written to disk chunk by chunk as it arrives, as in StoreThread, so its size doesn't
+                // decide how much memory we use
+                final byte[] buffer = new byte[StoreThread.CHUNK_SIZE];
+                int remaining = compressedSize;
+                try (OutputStream fileOut = new FileOutputStream(file)) {
+                    while (remaining > 0) {
+                        int n = msg.getSender().readData(buffer, 0, Math.min(buffer.length, remaining));
+                        if (n <= 0) {
+                            break;
+                        }
+                        fileOut.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                }
+                if (remaining > 0) {
+                    System.err.println("File " + fileName + " was not received completely");
+                    Files.deleteIfExists(file.toPath());
+                    return;
+                }
+
+                // a corrupted upload must not be acknowledged, so we check it decompresses to the announced size
+                long size;
+                try (InputStream in = Compression.decompress(new FileInputStream(file))) {
+                    size = in.transferTo(OutputStream.nullOutputStream());
+                }
+                if (size != fileSize) {
+                    System.err.println("File " + fileName + " decompresses to " + size + " bytes instead of " + fileSize);
+                    Files.deleteIfExists(file.toPath());
+                    return;
+                }
+
+                usedBytes.addAndGet(compressedSize);
+                fileSizes.put(fileName, (long) fileSize);
+                System.out.println("File " + fileName + " stored compressed with " + codec + " (" + compressedSize
+                        + " of " + fileSize + " bytes)");
+
+                faults.stallDisk();
+
+                // tell the controller that we're done, once the file is safely on disk
+                durability.commit(file.toPath(), () -> dstoreListener.fileStored(fileName));
+
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown codec " + codec + " for file " + fileName);
+            } catch (IOException e) {
+                System.err.println("Could not store file " + fileName);
+                e.printStackTrace();
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException ignored) {
+                }
+            } finally {
+                // we close the connection with the client after the store op
+                try {
+                    msg.getSender().closeConnection();
+                } catch (IOException e) {
+                    System.err.println("Could not close socket");
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,48 @@
+/**
+ * Gives every dstore connection a small number, so that the index can refer to the dstores holding a file with an int
+ * array rather than a list of objects. Numbers are never given twice, so an entry that still has the number of a dstore
+ * that was removed can't be mistaken for another one; they just no longer lead to a dstore.
+ */
+public class DstoreIds {
+
+    private static final DstoreIds instance = new DstoreIds();
+
+    /**
+     * Dstore with each number, or null once it was removed. Replaced when it grows, so it can be read without locking.
+     */
+    private volatile NetworkController.DstoreThread[] dstores = new NetworkController.DstoreThread[16];
+
+    private int next = 0;
+
+    public static DstoreIds getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the number of a new dstore connection
+     */
+    public synchronized int register(NetworkController.DstoreThread dstore) {
+        if (next == dstores.length) {
+            NetworkController.DstoreThread[] grown = new NetworkController.DstoreThread[2 * dstores.length];
+            System.arraycopy(dstores, 0, grown, 0, dstores.length);
+            dstores = grown;
+        }
+        dstores[next] = dstore;
+        return next++;
+    }
+
+    /**
+     * Forgets a dstore, so the connection can be garbage collected even if some entries still have its number
+     */
+    public synchronized void release(int id) {
+        dstores[id] = null;
+    }
+
+    /**
+     * @return the dstore with a number, or null if it was removed
+     */
+    public NetworkController.DstoreThread get(int id) {
+        NetworkController.DstoreThread[] current = dstores;
+        return (id < current.length) ? current[id] : null;
+    }
+}
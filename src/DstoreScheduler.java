@@ -0,0 +1,125 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the Dstore's operations on a fixed set of threads instead of a new thread per request. Operations are split
+ * into lanes by the resource they wait on, so a burst of slow uploads can't hold up loads, and vice versa:
+ * <ul>
+ *     <li>UPLOADS: stores, which mostly wait on the client's network connection</li>
+ *     <li>READS: loads, which mostly wait on the disk</li>
+ *     <li>METADATA: removes and other short operations</li>
+ * </ul>
+ * Each lane only accepts a bounded number of client operations; beyond that they are rejected straight away, so an
+ * overloaded dstore pushes back on its clients instead of piling up work. Operations requested by the Controller are
+ * never rejected and go ahead of any client operation waiting in the same lane.
+ */
+public class DstoreScheduler {
+
+    public enum Lane {
+        UPLOADS,
+        READS,
+        METADATA
+    }
+
+    private final ThreadPoolExecutor[] executors = new ThreadPoolExecutor[Lane.values().length];
+
+    /**
+     * Free places for client operations (waiting or running) in each lane
+     */
+    private final Semaphore[] slots = new Semaphore[Lane.values().length];
+
+    /**
+     * Keeps operations of the same priority in the order they were submitted
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param threads number of threads of each lane, indexed by Lane
+     * @param queueLimit maximum number of client operations (waiting or running) in each lane
+     */
+    public DstoreScheduler(int[] threads, int queueLimit) {
+        for (Lane lane : Lane.values()) {
+            int n = threads[lane.ordinal()];
+
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    n, n, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "dstore-" + lane.name().toLowerCase());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            // idle lanes should not keep threads around
+            executor.allowCoreThreadTimeOut(true);
+
+            executors[lane.ordinal()] = executor;
+            slots[lane.ordinal()] = new Semaphore(queueLimit);
+        }
+    }
+
+    /**
+     * Queues an operation
+     * @param lane lane the operation belongs to
+     * @param fromController whether the Controller asked for it, in which case it can't be rejected
+     * @param operation what to run
+     * @return false if the lane is full and the operation was rejected
+     */
+    public boolean submit(Lane lane, boolean fromController, Runnable operation) {
+        Semaphore laneSlots = slots[lane.ordinal()];
+
+        if (!fromController && !laneSlots.tryAcquire()) {
+            return false;
+        }
+
+        executors[lane.ordinal()].execute(new Operation(fromController, sequence.getAndIncrement(), () -> {
+            try {
+                operation.run();
+            } catch (RuntimeException e) {
+                System.err.println("Operation failed in lane " + lane + ": " + e);
+            } finally {
+                if (!fromController) {
+                    laneSlots.release();
+                }
+            }
+        }));
+
+        return true;
+    }
+
+    /**
+     * @return number of operations waiting to run, adding up all the lanes
+     */
+    public int queueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor executor : executors) {
+            depth += executor.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return number of operations running right now, adding up all the lanes
+     */
+    public int activeCount() {
+        int active = 0;
+        for (ThreadPoolExecutor executor : executors) {
+            active += executor.getActiveCount();
+        }
+        return active;
+    }
+
+    private record Operation(boolean fromController, long sequence, Runnable task)
+            implements Runnable, Comparable<Operation> {
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Operation other) {
+            if (fromController != other.fromController) {
+                return fromController ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a stored file is safe to acknowledge. Until its data and its directory entry have been flushed with
+ * fsync, a file the Controller has been told about can still disappear if the machine loses power.
+ * <ul>
+ *     <li>NONE: files are acknowledged as soon as they are written, as before</li>
+ *     <li>FSYNC: every file is flushed on its own before being acknowledged</li>
+ *     <li>GROUP: files are collected for a few milliseconds and flushed together, then all of them are acknowledged.
+ *     Each directory is only flushed once per batch, and the disk sees the flushes back to back, so the cost of a
+ *     flush is shared by every store that arrived in the meantime.</li>
+ * </ul>
+ */
+public class Durability {
+
+    public enum Mode {
+        NONE,
+        FSYNC,
+        GROUP
+    }
+
+    private record Pending(Collection<Path> files, Runnable onDurable) {
+    }
+
+    private final Mode mode;
+
+    /**
+     * Stores waiting for the next group commit
+     */
+    private final List<Pending> pending = new ArrayList<>();
+
+    public Durability(Mode mode, long groupCommitMillis) {
+        this.mode = mode;
+
+        if (mode == Mode.GROUP) {
+            ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "group-commit");
+                thread.setDaemon(true);
+                return thread;
+            });
+            committer.scheduleWithFixedDelay(this::groupCommit, groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Runs onDurable once the given files (already written and closed) are on stable storage. Depending on the mode
+     * that can be straight away, after flushing them, or after the next group commit.
+     * @param files files written by the store
+     * @param onDurable what to do once they are durable, usually sending STORE_ACK
+     */
+    public void commit(Collection<Path> files, Runnable onDurable) {
+        switch (mode) {
+            case NONE -> onDurable.run();
+            case FSYNC -> {
+                if (flush(files)) {
+                    onDurable.run();
+                }
+            }
+            case GROUP -> {
+                synchronized (pending) {
+                    pending.add(new Pending(files, onDurable));
+                }
+            }
+        }
+    }
+
+    public void commit(Path file, Runnable onDurable) {
+        commit(List.of(file), onDurable);
+    }
+
+    /**
+     * Flushes the stores collected since the last group commit. Nothing may escape from here, as an exception would
+     * cancel the schedule and no store would ever be acknowledged again, so anything unexpected only fails the batch
+     * (or the store) it happened in.
+     */
+    private void groupCommit() {
+        List<Pending> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        Set<Path> failed = new HashSet<>();
+        try {
+            // a file only needs one flush even if several stores wrote it (e.g. a chunk shared by two files)
+            Set<Path> files = new LinkedHashSet<>();
+            for (Pending store : batch) {
+                files.addAll(store.files());
+            }
+
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Path file : files) {
+                if (flushFile(file)) {
+                    directories.add(file.toAbsolutePath().getParent());
+                } else {
+                    failed.add(file);
+                }
+            }
+            directories.forEach(Durability::flushDirectory);
+        } catch (RuntimeException e) {
+            // like a failed flush, the stores are not acknowledged
+            System.err.println("Group commit of " + batch.size() + " stores failed: " + e);
+            return;
+        }
+
+        for (Pending store : batch) {
+            if (!Collections.disjoint(store.files(), failed)) {
+                continue;
+            }
+            try {
+                store.onDurable().run();
+            } catch (RuntimeException e) {
+                System.err.println("Could not acknowledge " + store.files() + " after group commit: " + e);
+            }
+        }
+    }
+
+    /**
+     * Flushes some files and then, once each, the directories that contain them
+     * @return false if any of them could not be flushed
+     */
+    private static boolean flush(Collection<Path> files) {
+        Set<Path> directories = new LinkedHashSet<>();
+
+        for (Path file : files) {
+            if (!flushFile(file)) {
+                return false;
+            }
+            directories.add(file.toAbsolutePath().getParent());
+        }
+
+        directories.forEach(Durability::flushDirectory);
+        return true;
+    }
+
+    private static boolean flushFile(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not flush " + file + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Flushes a directory, so the entries of the files created in it survive a crash
+     */
+    private static void flushDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform allows opening a directory, in which case the file flush is all we can do
+        }
+    }
+}
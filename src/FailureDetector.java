@@ -0,0 +1,111 @@
+import java.util.ArrayDeque;
+
+/**
+ * Phi accrual failure detector for one Dstore. Rather than declaring a dstore dead after a fixed silence, it learns
+ * how regularly the dstore's heartbeats arrive and computes phi, the (negative log10) probability that a heartbeat
+ * this late would still arrive if the dstore were alive. Phi grows quickly once the silence goes beyond what the
+ * dstore usually does, so a dstore that heartbeats regularly is suspected soon after it stops, while one with jittery
+ * heartbeats gets more slack.
+ * <p>
+ * Heartbeat intervals are assumed to be normally distributed, and the CDF is approximated with a logistic function.
+ * Only the periodic heartbeats are learned from: other messages show the dstore is alive too, but they come in bursts
+ * under load, and learning from them would make the detector expect a message every few ms and suspect a healthy
+ * dstore at its next ordinary pause between heartbeats.
+ */
+public class FailureDetector {
+
+    /**
+     * Number of intervals the mean and deviation are computed from
+     */
+    private static final int WINDOW = 100;
+
+    /**
+     * Phi above which the dstore is suspected; 8 means a 1 in 10^8 chance of being wrong with the assumed distribution
+     */
+    private final double threshold;
+
+    /**
+     * Lower bound of the deviation (in ms), so that very regular heartbeats don't make the detector over-sensitive
+     */
+    private final double minStdDeviation;
+
+    /**
+     * Extra silence (in ms) that is tolerated on top of the usual interval, e.g. for GC pauses
+     */
+    private final long acceptablePause;
+
+    private final ArrayDeque<Long> intervals = new ArrayDeque<>();
+    private double sum;
+    private double sumOfSquares;
+
+    /**
+     * When the last heartbeat arrived, or -1 if none has arrived
+     */
+    private long lastHeartbeat = -1;
+
+    /**
+     * When the last heartbeat or other message arrived, which is what the silence is measured from
+     */
+    private long lastSeen = -1;
+
+    public FailureDetector(double threshold, double minStdDeviation, long acceptablePause) {
+        this.threshold = threshold;
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+    }
+
+    /**
+     * Records that a periodic heartbeat arrived, learning from the interval since the previous one
+     * @param now current time in ms
+     */
+    public synchronized void heartbeat(long now) {
+        if (lastHeartbeat >= 0) {
+            long interval = now - lastHeartbeat;
+            intervals.addLast(interval);
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+
+            if (intervals.size() > WINDOW) {
+                long oldest = intervals.removeFirst();
+                sum -= oldest;
+                sumOfSquares -= (double) oldest * oldest;
+            }
+        }
+        lastHeartbeat = now;
+        lastSeen = Math.max(lastSeen, now);
+    }
+
+    /**
+     * Records that another message arrived, which shows the dstore is alive but says nothing about its heartbeats
+     * @param now current time in ms
+     */
+    public synchronized void seen(long now) {
+        lastSeen = Math.max(lastSeen, now);
+    }
+
+    /**
+     * @param now current time in ms
+     * @return suspicion level of the dstore, 0 until there are at least two heartbeats to learn from
+     */
+    public synchronized double phi(long now) {
+        if (intervals.isEmpty()) {
+            return 0;
+        }
+
+        double mean = sum / intervals.size() + acceptablePause;
+        double variance = sumOfSquares / intervals.size() - Math.pow(sum / intervals.size(), 2);
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviation);
+
+        long silence = now - lastSeen;
+        double y = (silence - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        // the probability of a later heartbeat is e / (1 + e), written differently before the mean because e can
+        // overflow to infinity there
+        return (silence > mean) ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    public boolean isSuspected(long now) {
+        return phi(now) > threshold;
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Messages waiting to be handled by the Controller's main loop, kept in a queue for each connection and taken from
+ * them in turns, so a client sending many requests can only slow down its own ones.
+ * <p>
+ * Requests from clients are admitted with offer, which refuses them when:
+ * <ul>
+ *     <li>the client has used up its token bucket, which fills up at rate requests per second up to burst;</li>
+ *     <li>the client already has maxQueuedPerConnection requests waiting;</li>
+ *     <li>or maxQueued messages are waiting in total.</li>
+ * </ul>
+ * The caller then tells the client it is overloaded, so the memory used by the queue stays bounded whatever the clients
+ * do. Messages from dstores are added with add, which always accepts them, and their connections get trustedWeight
+ * turns for every turn of a client, as they report on work that has already been done.
+ * <p>
+ * A refused request is answered straight away, so a client sending a request before the reply to the previous one may
+ * get ERROR_OVERLOADED ahead of earlier replies. Clients waiting for each reply, as the protocol expects, never do.
+ */
+public class FairTaskQueue {
+
+    /**
+     * Messages waiting from one connection
+     */
+    private static class Flow {
+
+        private final ArrayDeque<Message> messages = new ArrayDeque<>();
+
+        /**
+         * Messages taken from the flow in a row before the next one gets its turn
+         */
+        private final int weight;
+        private int taken = 0;
+
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        Flow(int weight, double tokens) {
+            this.weight = weight;
+            this.tokens = tokens;
+        }
+    }
+
+    private int maxQueued = 10000;
+    private int maxQueuedPerConnection = 64;
+    private double rate = 1000;
+    private int burst = 100;
+    private int trustedWeight = 4;
+
+    private final HashMap<ConnectionThread, Flow> flows = new HashMap<>();
+
+    /**
+     * Flows with messages waiting, in the order they will take turns
+     */
+    private final ArrayDeque<Flow> turns = new ArrayDeque<>();
+
+    private int size = 0;
+
+    /**
+     * @param maxQueued messages that can wait in total
+     * @param maxQueuedPerConnection requests that can wait from each client
+     * @param rate requests per second each client can sustain
+     * @param burst requests a client can send at once after being idle
+     * @param trustedWeight turns of a dstore for each turn of a client
+     */
+    public synchronized void setLimits(int maxQueued, int maxQueuedPerConnection, double rate, int burst,
+                                       int trustedWeight) {
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerConnection = maxQueuedPerConnection;
+        this.rate = rate;
+        this.burst = burst;
+        this.trustedWeight = trustedWeight;
+    }
+
+    /**
+     * Queues a request from a client, if it is within its limits
+     * @return false if the request was refused
+     */
+    public synchronized boolean offer(Message msg) {
+        Flow flow = flows.computeIfAbsent(msg.getSender(), k -> new Flow(1, burst));
+
+        long now = System.nanoTime();
+        flow.tokens = Math.min(burst, flow.tokens + (now - flow.refilledAt) / 1e9 * rate);
+        flow.refilledAt = now;
+
+        if ((flow.tokens < 1) || (flow.messages.size() >= maxQueuedPerConnection) || (size >= maxQueued)) {
+            return false;
+        }
+
+        flow.tokens--;
+        enqueue(flow, msg);
+        return true;
+    }
+
+    /**
+     * Queues a message from a dstore, or from anything else that must not be refused
+     */
+    public synchronized void add(Message msg) {
+        enqueue(flows.computeIfAbsent(msg.getSender(), k -> new Flow(trustedWeight, 0)), msg);
+    }
+
+    private void enqueue(Flow flow, Message msg) {
+        if (flow.messages.isEmpty()) {
+            turns.add(flow);
+        }
+        flow.messages.add(msg);
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * Waits for a message, then takes the next one in turn
+     */
+    public synchronized Message take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * @return the next message in turn, or null if there is none
+     */
+    public synchronized Message poll() {
+        Flow flow = turns.peek();
+        if (flow == null) {
+            return null;
+        }
+
+        Message msg = flow.messages.poll();
+        size--;
+        flow.taken++;
+
+        if (flow.messages.isEmpty()) {
+            turns.poll();
+            flow.taken = 0;
+        } else if (flow.taken >= flow.weight) {
+            turns.add(turns.poll());
+            flow.taken = 0;
+        }
+        return msg;
+    }
+
+    /**
+     * Forgets a connection that was closed, dropping the messages it still had waiting, as nobody will read the replies
+     */
+    public synchronized void remove(ConnectionThread connection) {
+        Flow flow = flows.remove(connection);
+        if (flow != null) {
+            size -= flow.messages.size();
+            turns.remove(flow);
+        }
+    }
+
+    public synchronized void clear() {
+        flows.clear();
+        turns.clear();
+        size = 0;
+    }
+}
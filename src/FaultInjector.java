@@ -0,0 +1,139 @@
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes a process misbehave on purpose, to see how the rest of the system copes: protocol lines can be delayed,
+ * dropped or duplicated, file content can be throttled, and disk operations can stall. The faults are given as a spec
+ * like delayMs:50,jitterMs:20,drop:0.01,messages:STORE_ACK+REMOVE_ACK (see configure), and can be changed at any
+ * time, e.g. with a FAULTS message, which processes only accept if they were started with the faults option. Without
+ * a spec there are no faults, and the checks cost a volatile read.
+ */
+public class FaultInjector {
+
+    /**
+     * @param delayMillis fixed delay of each line
+     * @param jitterMillis mean of an exponentially distributed delay added to it
+     * @param drop probability of a line being lost
+     * @param duplicate probability of a line being delivered twice
+     * @param messages tokens of the lines affected, or empty for all of them
+     * @param bandwidth bytes of file content per second, shared by all the connections, or 0 for no limit
+     * @param diskStallMillis how long a disk operation stalls
+     * @param diskStallRate probability of a disk operation stalling
+     */
+    public record Faults(long delayMillis, long jitterMillis, double drop, double duplicate, Set<String> messages,
+                         long bandwidth, long diskStallMillis, double diskStallRate) {
+
+        public static final Faults NONE = new Faults(0, 0, 0, 0, Set.of(), 0, 0, 0);
+
+        boolean affects(String line) {
+            return messages.isEmpty() || messages.contains(line.split(" ", 2)[0]);
+        }
+    }
+
+    private volatile Faults faults = Faults.NONE;
+
+    /**
+     * When the bandwidth limit lets the next bytes through
+     */
+    private long nextTransferNanos = 0;
+
+    /**
+     * @param spec comma-separated key:value pairs, with keys delayMs, jitterMs, drop, duplicate, messages (tokens
+     *             separated by +), bandwidth, diskStallMs and diskStallRate; none or an empty spec removes all faults
+     */
+    public void configure(String spec) {
+        long delayMillis = 0;
+        long jitterMillis = 0;
+        double drop = 0;
+        double duplicate = 0;
+        Set<String> messages = Set.of();
+        long bandwidth = 0;
+        long diskStallMillis = 0;
+        double diskStallRate = 0;
+
+        if (!spec.isBlank() && !spec.equals("none")) {
+            for (String entry : spec.trim().split(",")) {
+                String[] fault = entry.split(":", 2);
+                switch (fault[0]) {
+                    case "delayMs" -> delayMillis = Long.parseLong(fault[1]);
+                    case "jitterMs" -> jitterMillis = Long.parseLong(fault[1]);
+                    case "drop" -> drop = Double.parseDouble(fault[1]);
+                    case "duplicate" -> duplicate = Double.parseDouble(fault[1]);
+                    case "messages" -> messages = Set.of(fault[1].split("\\+"));
+                    case "bandwidth" -> bandwidth = Long.parseLong(fault[1]);
+                    case "diskStallMs" -> diskStallMillis = Long.parseLong(fault[1]);
+                    case "diskStallRate" -> diskStallRate = Double.parseDouble(fault[1]);
+                    default -> throw new IllegalArgumentException("Unknown fault " + fault[0]);
+                }
+            }
+        }
+
+        faults = new Faults(delayMillis, jitterMillis, drop, duplicate, messages, bandwidth, diskStallMillis,
+                diskStallRate);
+        System.err.println("Injecting faults: " + faults);
+    }
+
+    public Faults getFaults() {
+        return faults;
+    }
+
+    /**
+     * Delays a line that is being sent or received, if it is affected
+     * @return how many times to deliver it: 0 to drop it, 1, or 2 to duplicate it
+     */
+    public int deliveries(String line) {
+        Faults current = faults;
+        if ((current == Faults.NONE) || (line == null) || !current.affects(line)) {
+            return 1;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = current.delayMillis()
+                + Math.round(-Math.log(1 - random.nextDouble()) * current.jitterMillis());
+        if (delay > 0) {
+            sleep(TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+
+        if (random.nextDouble() < current.drop()) {
+            return 0;
+        }
+        return (random.nextDouble() < current.duplicate()) ? 2 : 1;
+    }
+
+    /**
+     * Waits until the bandwidth limit lets len more bytes through
+     */
+    public void throttle(int len) {
+        long bandwidth = faults.bandwidth();
+        if (bandwidth <= 0) {
+            return;
+        }
+
+        long done;
+        synchronized (this) {
+            nextTransferNanos = Math.max(nextTransferNanos, System.nanoTime()) + len * 1_000_000_000L / bandwidth;
+            done = nextTransferNanos;
+        }
+        sleep(done - System.nanoTime());
+    }
+
+    /**
+     * Called before a disk operation, which sometimes stalls
+     */
+    public void stallDisk() {
+        Faults current = faults;
+        if ((current.diskStallRate() > 0) && (ThreadLocalRandom.current().nextDouble() < current.diskStallRate())) {
+            sleep(TimeUnit.MILLISECONDS.toNanos(current.diskStallMillis()));
+        }
+    }
+
+    private static void sleep(long nanos) {
+        long end = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Transport that passes everything through a FaultInjector, on the way out and on the way in
+ */
+public class FaultyTransport implements Transport {
+
+    private final Transport transport;
+    private final FaultInjector faults;
+
+    /**
+     * Second copies of duplicated lines, returned by the next readLine
+     */
+    private final ArrayDeque<String> duplicates = new ArrayDeque<>();
+
+    public FaultyTransport(Transport transport, FaultInjector faults) {
+        this.transport = transport;
+        this.faults = faults;
+    }
+
+    public FaultInjector getFaults() {
+        return faults;
+    }
+
+    @Override
+    public void send(String line) {
+        int deliveries = faults.deliveries(line);
+        for (int i = 0; i < deliveries; i++) {
+            transport.send(line);
+        }
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        if (!duplicates.isEmpty()) {
+            return duplicates.poll();
+        }
+
+        while (true) {
+            String line = transport.readLine();
+            int deliveries = faults.deliveries(line);
+            if (deliveries > 0) {
+                if (deliveries > 1) {
+                    duplicates.add(line);
+                }
+                return line;
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        faults.throttle(len);
+        transport.write(data, off, len);
+    }
+
+    @Override
+    public int read(byte[] data, int off, int len) throws IOException {
+        int n = transport.read(data, off, len);
+        faults.throttle(n);
+        return n;
+    }
+
+    @Override
+    public boolean hasFailed() {
+        return transport.hasFailed();
+    }
+
+    @Override
+    public int getPort() {
+        return transport.getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+}
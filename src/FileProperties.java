@@ -1,15 +1,105 @@
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+/**
+ * Entry of a file in the Controller's index. There is one for every file, so it only holds primitives: the dstores are
+ * referred to by their number (see DstoreIds), and getDstores builds the list of dstores when it is asked for.
+ * <p>
+ * The status and the dstores holding the file are packed together in one long, changed with compareAndSet, so every
+ * change is atomic without locking and operations on different files never wait for each other. A file on more than
+ * three dstores, or on one whose number doesn't fit, has them in an array instead, which is only replaced while holding
+ * the lock of the entry, so erasure coded files and dstores that reconnected often still work.
+ * <p>
+ * A file goes through STORE_IN_PROGRESS, STORE_COMPLETE, REMOVE_IN_PROGRESS and REMOVE_COMPLETE, in that order (a store
+ * that fails goes straight to REMOVE_COMPLETE), and is then dropped from the index. Dstores can only be added before
+ * the removal starts, so once transition has moved the file to REMOVE_IN_PROGRESS or REMOVE_COMPLETE, getDstores
+ * gives every dstore that will ever have to remove it.
+ */
 public class FileProperties {
-    private final int fileSize;
-    private FileStatus status;
-    private ArrayList<NetworkController.DstoreThread> dstores;
 
-    public FileProperties(int fileSize, FileStatus status, ArrayList<NetworkController.DstoreThread> dstores) {
+    /**
+     * Last version given to a file
+     */
+    private static final AtomicLong lastVersion = new AtomicLong();
+
+    private static final FileStatus[] statuses = FileStatus.values();
+
+    private static final int[] none = new int[0];
+
+    private static final AtomicLongFieldUpdater<FileProperties> stateUpdater =
+            AtomicLongFieldUpdater.newUpdater(FileProperties.class, "state");
+
+    /**
+     * Layout of state: the ordinal of the FileStatus in the lowest bits, then up to SLOTS dstores, each as its number
+     * plus one, so that 0 is an empty slot. The dstores always take the first slots.
+     */
+    private static final int STATUS_BITS = 2;
+    private static final long STATUS_MASK = (1L << STATUS_BITS) - 1;
+    private static final int SLOTS = 3;
+    private static final int SLOT_BITS = 20;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+
+    /**
+     * Value of state once the file is in overflow, which packed states never have as they leave the highest bits at 0
+     */
+    private static final long OVERFLOW = -1;
+
+    private final long fileSize;
+
+    /**
+     * Different for every file stored, even with the same name as a file removed before, so clients caching where a
+     * file is can tell whether their entry is about the current file
+     */
+    private final long version = lastVersion.incrementAndGet();
+
+    /**
+     * FileStatus and dstores holding the file (see STATUS_BITS), or OVERFLOW once they no longer fit
+     */
+    private volatile long state;
+
+    /**
+     * Ordinal of the FileStatus, followed by the numbers of the dstores holding the file, once state is OVERFLOW. It
+     * never goes back, and the array is only replaced while holding the lock of the entry.
+     */
+    private volatile int[] overflow;
+
+    /**
+     * Number of data shards if the file is erasure coded, 0 if it is replicated
+     */
+    private final int dataShards;
+
+    /**
+     * Number of the dstore chosen for each shard of an erasure coded file, indexed by shard. A shard is only available
+     * while its dstore is also in dstores.
+     */
+    private final int[] shards;
+
+    public FileProperties(long fileSize, FileStatus status, List<NetworkController.DstoreThread> dstores) {
+        this(fileSize, status, dstores, 0, new NetworkController.DstoreThread[0]);
+    }
+
+    public FileProperties(
+            long fileSize,
+            FileStatus status,
+            List<NetworkController.DstoreThread> dstores,
+            int dataShards,
+            NetworkController.DstoreThread[] shards
+    ) {
         this.fileSize = fileSize;
-        this.status = status;
-        this.dstores = dstores;
+        this.state = status.ordinal();
+        this.dataShards = dataShards;
+
+        this.shards = (shards.length == 0) ? none : new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            this.shards[i] = shards[i].getId();
+        }
+
+        for (NetworkController.DstoreThread dstore : dstores) {
+            add(dstore, false);
+        }
     }
 
     enum FileStatus {
@@ -19,47 +109,280 @@ public class FileProperties {
         REMOVE_COMPLETE
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
     public FileStatus getStatus() {
-        return status;
+        long packed = state;
+        return statuses[(packed == OVERFLOW) ? overflow[0] : (int) (packed & STATUS_MASK)];
+    }
+
+    /**
+     * Moves the file from one status to another, if it is still in the first one
+     * @return false if the file was not in status from
+     */
+    public boolean transition(FileStatus from, FileStatus to) {
+        while (true) {
+            long packed = state;
+            if (packed == OVERFLOW) {
+                synchronized (this) {
+                    int[] current = overflow;
+                    if (current[0] != from.ordinal()) {
+                        return false;
+                    }
+                    int[] next = current.clone();
+                    next[0] = to.ordinal();
+                    overflow = next;
+                    return true;
+                }
+            }
+
+            if ((packed & STATUS_MASK) != from.ordinal()) {
+                return false;
+            }
+            if (stateUpdater.compareAndSet(this, packed, (packed & ~STATUS_MASK) | to.ordinal())) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the dstores holding the file that are still connected
+     */
+    public List<NetworkController.DstoreThread> getDstores() {
+        long packed = state;
+        int[] ids = (packed == OVERFLOW) ? overflow : null;
+        int count = (ids == null) ? count(packed) : ids.length - 1;
+
+        List<NetworkController.DstoreThread> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = (ids == null) ? slot(packed, i) : ids[i + 1];
+            NetworkController.DstoreThread dstore = DstoreIds.getInstance().get(id);
+            if (dstore != null) {
+                list.add(dstore);
+            }
+        }
+        return list;
+    }
+
+    public boolean hasDstore(NetworkController.DstoreThread dstore) {
+        return contains(dstore.getId());
+    }
+
+    private boolean contains(int id) {
+        long packed = state;
+        return (packed == OVERFLOW) ? (indexOf(overflow, id) > 0) : (indexOf(packed, id) >= 0);
+    }
+
+    /**
+     * Records that a dstore stored the file, unless its removal has started, in which case the dstore must be told to
+     * remove it as nobody else will
+     * @return false if the removal has started
+     */
+    public boolean addDstore(NetworkController.DstoreThread dstore) {
+        return add(dstore, true);
+    }
+
+    /**
+     * @param refuseRemoved whether to refuse the dstore once the removal has started, which entries being built don't
+     * @return false if the dstore was refused
+     */
+    private boolean add(NetworkController.DstoreThread dstore, boolean refuseRemoved) {
+        int id = dstore.getId();
+        while (true) {
+            long packed = state;
+            if (packed == OVERFLOW) {
+                synchronized (this) {
+                    int[] current = overflow;
+                    if (refuseRemoved && isRemoval(current[0])) {
+                        return false;
+                    }
+                    if (indexOf(current, id) > 0) {
+                        return true;
+                    }
+                    int[] next = Arrays.copyOf(current, current.length + 1);
+                    next[current.length] = id;
+                    overflow = next;
+                }
+                dstore.getStoredFiles().incrementAndGet();
+                return true;
+            }
+
+            if (refuseRemoved && isRemoval((int) (packed & STATUS_MASK))) {
+                return false;
+            }
+            if (indexOf(packed, id) >= 0) {
+                return true;
+            }
+
+            int count = count(packed);
+            boolean added = ((count < SLOTS) && (id < SLOT_MASK))
+                    ? stateUpdater.compareAndSet(this, packed, packed | ((id + 1L) << shift(count)))
+                    : toOverflow(packed, id);
+            if (added) {
+                dstore.getStoredFiles().incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves a packed state to overflow, with one more dstore that doesn't fit in it
+     * @return false if the state was changed in the meantime
+     */
+    private synchronized boolean toOverflow(long packed, int id) {
+        // once in overflow only the lock holder may write the array, so it must not be touched if that already happened
+        if (state != packed) {
+            return false;
+        }
+
+        int count = count(packed);
+        int[] next = new int[count + 2];
+        next[0] = (int) (packed & STATUS_MASK);
+        for (int i = 0; i < count; i++) {
+            next[i + 1] = slot(packed, i);
+        }
+        next[count + 1] = id;
+        overflow = next;
+        return stateUpdater.compareAndSet(this, packed, OVERFLOW);
+    }
+
+    /**
+     * @return false if the dstore was not holding the file
+     */
+    public boolean removeDstore(NetworkController.DstoreThread dstore) {
+        int id = dstore.getId();
+        while (true) {
+            long packed = state;
+            if (packed == OVERFLOW) {
+                synchronized (this) {
+                    int[] current = overflow;
+                    int i = indexOf(current, id);
+                    if (i < 0) {
+                        return false;
+                    }
+                    int[] next = new int[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    overflow = next;
+                }
+                dstore.getStoredFiles().decrementAndGet();
+                return true;
+            }
+
+            int i = indexOf(packed, id);
+            if (i < 0) {
+                return false;
+            }
+            // the slots after it move down one, so the dstores still take the first slots
+            long next = (packed & ((1L << shift(i)) - 1)) | ((packed >>> shift(i + 1)) << shift(i));
+            if (stateUpdater.compareAndSet(this, packed, next)) {
+                dstore.getStoredFiles().decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    private static boolean isRemoval(int status) {
+        return (status == FileStatus.REMOVE_IN_PROGRESS.ordinal()) || (status == FileStatus.REMOVE_COMPLETE.ordinal());
+    }
+
+    /**
+     * @return position of the lowest bit of a slot in a packed state
+     */
+    private static int shift(int slot) {
+        return STATUS_BITS + slot * SLOT_BITS;
+    }
+
+    /**
+     * @return number of the dstore in a slot of a packed state, or -1 if it is empty
+     */
+    private static int slot(long packed, int i) {
+        return (int) ((packed >>> shift(i)) & SLOT_MASK) - 1;
+    }
+
+    /**
+     * @return number of dstores in a packed state
+     */
+    private static int count(long packed) {
+        for (int i = 0; i < SLOTS; i++) {
+            if (slot(packed, i) < 0) {
+                return i;
+            }
+        }
+        return SLOTS;
+    }
+
+    /**
+     * @return slot of a dstore number in a packed state, or -1 if it is not there
+     */
+    private static int indexOf(long packed, int id) {
+        for (int i = 0; i < SLOTS; i++) {
+            int slot = slot(packed, i);
+            if (slot == id) {
+                return i;
+            }
+            if (slot < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return position of a dstore number in an overflow array, or -1 if it is not there
+     */
+    private static int indexOf(int[] current, int id) {
+        for (int i = 1; i < current.length; i++) {
+            if (current[i] == id) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public synchronized void setStatus(FileStatus status) {
-        this.status = status;
+    public boolean isErasureCoded() {
+        return dataShards > 0;
     }
 
-    public ArrayList<NetworkController.DstoreThread> getDstores() {
-        return dstores;
+    public int getDataShards() {
+        return dataShards;
     }
 
-    public synchronized boolean addDstore(NetworkController.DstoreThread dstore) {
-        return this.dstores.add(dstore);
+    public int getParityShards() {
+        return shards.length - dataShards;
     }
 
-    public synchronized boolean removeDstore(NetworkController.DstoreThread dstore) {
-        return this.dstores.remove(dstore);
+    /**
+     * @return the dstore holding shard i, or null if that shard is not available
+     */
+    public NetworkController.DstoreThread getShard(int i) {
+        return contains(shards[i]) ? DstoreIds.getInstance().get(shards[i]) : null;
     }
 
     public int getCount() {
-        return dstores.size();
+        long packed = state;
+        return (packed == OVERFLOW) ? overflow.length - 1 : count(packed);
     }
 
     public boolean storeIsInProgress() {
-        return this.status == FileStatus.STORE_IN_PROGRESS;
+        return getStatus() == FileStatus.STORE_IN_PROGRESS;
     }
 
     public boolean storeIsCompleted() {
-        return this.status == FileStatus.STORE_COMPLETE;
+        return getStatus() == FileStatus.STORE_COMPLETE;
     }
 
     public boolean removeIsInProgress() {
-        return this.status == FileStatus.REMOVE_IN_PROGRESS;
+        return getStatus() == FileStatus.REMOVE_IN_PROGRESS;
     }
 
     public boolean removeIsCompleted() {
-        return this.status == FileStatus.REMOVE_COMPLETE;
+        return getStatus() == FileStatus.REMOVE_COMPLETE;
     }
 }
@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepares a Dstore's folder at startup, using several threads since most of the time goes into waiting for the file
+ * system on each file. It either wipes the folder, or scans the files already in it so the dstore can keep serving
+ * them after a restart:
+ * <ul>
+ *     <li>plain files are kept as they are, with their size</li>
+ *     <li>compressed files are kept; their size is only known once they are decompressed, which happens now if they
+ *     are verified, or else the first time it is needed</li>
+ *     <li>recipes are kept if all their chunks are there, and the chunks' reference counts are rebuilt from them.
+ *     Chunks no recipe refers to (e.g. left by a store that was interrupted) are deleted.</li>
+ * </ul>
+ * When verifying, compressed files that don't decompress and chunks that don't match their hash are deleted, along with
+ * the recipes using them. Plain files have nothing to be checked against.
+ */
+public class FolderScan {
+
+    private final Path folder;
+    private final ChunkStore chunkStore;
+    private final int threads;
+    private final boolean verify;
+
+    /**
+     * Where the size of the content of each file found is put, or -1 if it is not known yet
+     */
+    private final Map<String, Long> fileSizes;
+
+    /**
+     * Bytes taken on disk by the files, chunks and recipes that are kept
+     */
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    public FolderScan(String fileFolder, ChunkStore chunkStore, Map<String, Long> fileSizes, int threads,
+                      boolean verify) {
+        this.folder = Path.of(fileFolder);
+        this.chunkStore = chunkStore;
+        this.fileSizes = fileSizes;
+        this.threads = threads;
+        this.verify = verify;
+    }
+
+    /**
+     * Scans the folder. The chunk store must be empty, as it gets a reference for each chunk occurrence in a recipe.
+     * Files that can't be read are logged and left out.
+     */
+    public void scan() throws IOException {
+        Path compressedFolder = folder.resolve(".compressed");
+        Path chunkFolder = chunkStore.getChunkFolder();
+        Path recipeFolder = chunkStore.getRecipeFolder();
+        Set<Path> storageFolders = Set.of(compressedFolder, chunkFolder, recipeFolder);
+
+        List<Path> plain = list(folder);
+        plain.removeAll(storageFolders);
+        inParallel(plain, threads, this::scanPlain);
+
+        inParallel(list(compressedFolder), threads, this::scanCompressed);
+
+        // chunks are checked before the recipes, so a recipe with a corrupted chunk is dropped
+        Set<String> chunks = ConcurrentHashMap.newKeySet();
+        inParallel(list(chunkFolder), threads, chunk -> {
+            String hash = chunk.getFileName().toString();
+            if (!verify || chunkStore.verify(hash)) {
+                chunks.add(hash);
+            } else {
+                System.err.println("Chunk " + hash + " does not match its hash, deleting it");
+                Files.delete(chunk);
+            }
+        });
+
+        inParallel(list(recipeFolder), threads, recipe -> {
+            String fileName = recipe.getFileName().toString();
+            long size = chunkStore.restore(fileName, chunks);
+            if (size >= 0) {
+                fileSizes.put(fileName, size);
+                diskBytes.addAndGet(Files.size(recipe));
+            } else {
+                System.err.println("File " + fileName + " is missing some of its chunks, deleting it");
+                Files.delete(recipe);
+            }
+        });
+
+        inParallel(chunks.stream().map(chunkStore::chunkPath).toList(), threads, chunk -> {
+            if (chunkStore.isReferenced(chunk.getFileName().toString())) {
+                diskBytes.addAndGet(Files.size(chunk));
+            } else {
+                Files.delete(chunk);
+            }
+        });
+    }
+
+    private void scanPlain(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.isRegularFile()) {
+            fileSizes.put(file.getFileName().toString(), attributes.size());
+            diskBytes.addAndGet(attributes.size());
+        }
+    }
+
+    private void scanCompressed(Path file) throws IOException {
+        long size = -1;
+
+        if (verify) {
+            try (InputStream in = Compression.decompress(Files.newInputStream(file))) {
+                size = in.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                System.err.println("Compressed file " + file.getFileName() + " is corrupted, deleting it");
+                Files.delete(file);
+                return;
+            }
+        }
+
+        fileSizes.put(file.getFileName().toString(), size);
+        diskBytes.addAndGet(Files.size(file));
+    }
+
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    /**
+     * Deletes everything in a folder, several files at a time
+     * @return number of files deleted
+     */
+    public static int clean(String fileFolder, int threads) throws IOException {
+        AtomicInteger deleted = new AtomicInteger();
+        List<Path> directories = Collections.synchronizedList(new ArrayList<>());
+
+        inParallel(list(Path.of(fileFolder)), threads, path -> {
+            try {
+                Files.delete(path);
+                deleted.incrementAndGet();
+            } catch (DirectoryNotEmptyException e) {
+                // the chunk store keeps its data in subdirectories, which are emptied once the others are deleted
+                directories.add(path);
+            }
+        });
+
+        for (Path directory : directories) {
+            deleted.addAndGet(clean(directory.toString(), threads));
+            Files.delete(directory);
+        }
+
+        return deleted.get();
+    }
+
+    /**
+     * @return entries of a folder, or none if it does not exist
+     */
+    private static List<Path> list(Path folder) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return entries;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            stream.forEach(entries::add);
+        }
+        return entries;
+    }
+
+    private interface PathTask {
+        void run(Path path) throws IOException;
+    }
+
+    /**
+     * Runs a task on every path, splitting them evenly between the threads. Paths the task fails on are logged.
+     */
+    private static void inParallel(List<Path> paths, int threads, PathTask task) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        int nThreads = Math.max(1, Math.min(threads, paths.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int t = 0; t < nThreads; t++) {
+            List<Path> share = paths.subList(paths.size() * t / nThreads, paths.size() * (t + 1) / nThreads);
+            results.add(executor.submit(() -> {
+                for (Path path : share) {
+                    try {
+                        task.run(path);
+                    } catch (IOException e) {
+                        System.err.println("Could not scan " + path + ": " + e);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Scan did not finish", e);
+            }
+        }
+    }
+}
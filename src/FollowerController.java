@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Read-only replica of the Controllers' index, answering LIST, LIST_PAGE, LOAD, RELOAD and LOCATE so that reads don't
+ * compete with stores and removes on the Controllers.
+ * <p>
+ * Usage: java FollowerController port cport timeout [key=value...]
+ * <p>
+ * The follower sends FOLLOW to the Controller at cport, which replies with the partition map and then streams every
+ * change to the files that can be read: INDEX_PUT when a file is stored or loses a dstore, INDEX_REMOVE when its
+ * removal starts, and INDEX_SYNC every so often to say nothing else has changed. With several partitions, the follower
+ * follows every Controller, so it has the whole index. Each Controller's changes arrive in order, so after an
+ * INDEX_SYNC the follower is at most as far behind as the time since it received it. A read of a partition that has
+ * not been synced for maxStalenessMillis is answered with REDIRECT to its Controller, as are stores, removes and
+ * erasure coded files.
+ * <p>
+ * Dstores that became suspected after a file was published are still given out; the client then moves on to the next
+ * one with RELOAD, as it would with a dstore that failed after a LOAD_FROM from the Controller.
+ */
+public class FollowerController {
+
+    /**
+     * What a follower knows about a file that can be read
+     * @param dataShards number of data shards if the file is erasure coded, 0 if it is replicated
+     * @param ports dstores holding the file
+     */
+    record Entry(long fileSize, long version, int dataShards, int[] ports) {}
+
+    /**
+     * Port on which the follower listens for clients
+     */
+    protected static int port;
+
+    /**
+     * Port of the Controller to follow, which gives the ports of the others
+     */
+    protected static int cport;
+
+    protected static int timeout;
+
+    /**
+     * How far behind (in ms) the index may be before reads are sent to the Controllers
+     */
+    protected static int maxStalenessMillis = 1000;
+
+    /**
+     * Most files sent in a reply to LIST_PAGE, as on the Controllers
+     */
+    protected static int maxListPage = 1000;
+
+    protected static Partitions partitions;
+
+    protected static final ConcurrentSkipListMap<String, Entry> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * When (System.nanoTime) each partition was last known to be up to date, or 0 if it isn't
+     */
+    protected static AtomicLongArray lastSync;
+
+    /**
+     * Requests from clients, admitted with the Controller's default limits
+     */
+    protected static final FairTaskQueue tasks = new FairTaskQueue();
+
+    /**
+     * Client connections that asked to be told with INVALIDATE when a file is removed
+     */
+    protected static final Set<ConnectionThread> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Replica each connection was last given for each file, so RELOAD can give the next one
+     */
+    protected static final HashMap<ConnectionThread, HashMap<String, Integer>> fileIndexToBeLoad = new HashMap<>();
+
+    public static void main(String[] args) {
+        port = Integer.parseInt(args[0]);
+        cport = Integer.parseInt(args[1]);
+        timeout = Integer.parseInt(args[2]);
+
+        // optional settings, given as key=value after the mandatory arguments
+        for (int i = 3; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            switch (option[0]) {
+                case "maxStalenessMs" -> maxStalenessMillis = Integer.parseInt(option[1]);
+                case "maxListPage" -> maxListPage = Integer.parseInt(option[1]);
+                default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+
+        // the Controller at cport gives the partition map, and then every partition is followed on its own
+        partitions = fetchPartitions();
+        lastSync = new AtomicLongArray(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            follow(i);
+        }
+
+        Thread incomingConnections = new Thread(new NetworkController(port, tasks));
+        incomingConnections.start();
+
+        while (true) {
+            Message msg;
+            try {
+                msg = tasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                handleMessage(msg);
+            } catch (Exception e) {
+                System.err.println("Could not handle message " + msg.getContent());
+            }
+        }
+    }
+
+    /**
+     * Asks the Controller at cport for the partition map, until it answers
+     */
+    private static Partitions fetchPartitions() {
+        while (true) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), cport)) {
+                socket.setSoTimeout(timeout);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+                out.println(Protocol.PARTITIONS_TOKEN);
+                return Partitions.fromReply(in.readLine());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not get the partition map from the Controller at " + cport + ": " + e);
+            }
+
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
+    }
+
+    /**
+     * Starts a thread following the Controller of a partition, reconnecting whenever the connection is lost
+     */
+    private static void follow(int partition) {
+        Thread follower = new Thread(() -> {
+            while (true) {
+                int controllerPort = partitions.getPort(partition);
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), controllerPort)) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+                    // the Controller sends its whole index again, which replaces whatever was there
+                    dropPartition(partition);
+                    out.println(Protocol.FOLLOW_TOKEN);
+                    System.out.println("Following the Controller at " + controllerPort);
+
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        apply(partition, line);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Lost the Controller at " + controllerPort + ": " + e.getMessage());
+                }
+
+                lastSync.set(partition, 0);
+                try {
+                    Thread.sleep(timeout);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "follow-" + partition);
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Applies a line received from the Controller of a partition
+     */
+    private static void apply(int partition, String line) {
+        String[] args = line.split(" ");
+
+        switch (args[0]) {
+            case Protocol.PARTITIONS_TOKEN -> {
+                if (!Partitions.fromReply(line).equals(partitions)) {
+                    System.err.println("The Controller at " + partitions.getPort(partition) + " has a different "
+                            + "partition map: " + line);
+                }
+            }
+            case Protocol.INDEX_PUT_TOKEN -> {
+                // INDEX_PUT filename filesize version datashards port1 port2 ...
+                int[] ports = new int[args.length - 5];
+                for (int i = 5; i < args.length; i++) {
+                    ports[i - 5] = Integer.parseInt(args[i]);
+                }
+                index.put(args[1], new Entry(Long.parseLong(args[2]), Long.parseLong(args[3]),
+                        Integer.parseInt(args[4]), ports));
+            }
+            case Protocol.INDEX_REMOVE_TOKEN -> {
+                Entry removed = index.remove(args[1]);
+                if (removed != null) {
+                    invalidate(args[1], removed.version());
+                }
+            }
+            case Protocol.INDEX_SYNC_TOKEN -> lastSync.set(partition, System.nanoTime());
+            default -> System.err.println("Unknown message from the Controller: " + line);
+        }
+    }
+
+    /**
+     * Forgets the files of a partition, before its Controller sends them again
+     */
+    private static void dropPartition(int partition) {
+        lastSync.set(partition, 0);
+        index.keySet().removeIf(fileName -> partitions.partitionOf(fileName) == partition);
+    }
+
+    private static boolean isFresh(int partition) {
+        long synced = lastSync.get(partition);
+        return (synced != 0) && (System.nanoTime() - synced <= TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis));
+    }
+
+    public static void handleMessage(Message msg) {
+        String[] args = msg.getContent().split(" ");
+
+        switch (args[0]) {
+            case Protocol.LIST_TOKEN, Protocol.LIST_PAGE_TOKEN -> listOp(msg);
+            case Protocol.PARTITIONS_TOKEN -> msg.getSender().communicate(partitions.toReply());
+            case Protocol.SUBSCRIBE_TOKEN -> subscribers.add(msg.getSender());
+            case Protocol.LOAD_TOKEN, Protocol.LOCATE_TOKEN, Protocol.RELOAD_TOKEN -> {
+                Entry entry = index.get(args[1]);
+                if (!isFresh(partitions.partitionOf(args[1])) || ((entry != null) && (entry.dataShards() > 0))) {
+                    redirect(msg, args[1]);
+                } else if (entry == null) {
+                    msg.getSender().communicate(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                } else if (args[0].equals(Protocol.LOCATE_TOKEN)) {
+                    locateOp(msg, entry);
+                } else {
+                    loadOp(msg, args[1], entry, args[0].equals(Protocol.RELOAD_TOKEN));
+                }
+            }
+            // anything else changes the index, which only the Controller in charge of the file can do
+            default -> redirect(msg, (args.length > 1) ? args[1] : "");
+        }
+    }
+
+    private static void redirect(Message msg, String fileName) {
+        msg.getSender().communicate(Protocol.REDIRECT_TOKEN + " " + partitions.controllerFor(fileName));
+    }
+
+    /**
+     * Lists the files of every partition, for LIST or LIST_PAGE, unless one of them is too far behind, in which case
+     * the client is sent to the Controllers
+     */
+    public static void listOp(Message msg) {
+        for (int i = 0; i < partitions.size(); i++) {
+            if (!isFresh(i)) {
+                msg.getSender().communicate(Protocol.REDIRECT_TOKEN + " " + partitions.getPort(i));
+                return;
+            }
+        }
+
+        if (msg.getContent().startsWith(Protocol.LIST_PAGE_TOKEN)) {
+            msg.getSender().communicate(ListPage.parse(msg.getContent()).reply(index, entry -> true, maxListPage));
+            return;
+        }
+
+        String prefix = msg.getContent().substring(Protocol.LIST_TOKEN.length()).trim();
+        StringBuilder fileList = new StringBuilder();
+        for (String fileName : index.tailMap(prefix).keySet()) {
+            if (!fileName.startsWith(prefix)) {
+                break;
+            }
+            fileList.append(fileName).append(" ");
+        }
+
+        msg.getSender().communicate(Protocol.LIST_TOKEN + " " + fileList.toString().trim());
+    }
+
+    /**
+     * Replies with LOAD_FROM port filesize for the first replica, or the next one after the last given for RELOAD
+     */
+    public static void loadOp(Message msg, String fileName, Entry entry, boolean reload) {
+        HashMap<String, Integer> loads = fileIndexToBeLoad.computeIfAbsent(msg.getSender(), k -> new HashMap<>());
+        int i = (reload && loads.containsKey(fileName)) ? loads.get(fileName) + 1 : 0;
+        loads.put(fileName, i);
+
+        if (i >= entry.ports().length) {
+            msg.getSender().communicate(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
+        msg.getSender().communicate(Protocol.LOAD_FROM_TOKEN + " " + entry.ports()[i] + " " + entry.fileSize());
+    }
+
+    /**
+     * Replies with LOCATIONS filesize version port1 port2 ..., as the Controller does
+     */
+    public static void locateOp(Message msg, Entry entry) {
+        if (entry.ports().length == 0) {
+            msg.getSender().communicate(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+
+        StringBuilder ports = new StringBuilder();
+        for (int dstorePort : entry.ports()) {
+            ports.append(" ").append(dstorePort);
+        }
+
+        msg.getSender().communicate(Protocol.LOCATIONS_TOKEN + " " + entry.fileSize() + " " + entry.version() + ports);
+    }
+
+    /**
+     * Tells every subscribed client to drop the cached location of a removed file
+     */
+    private static void invalidate(String fileName, long version) {
+        for (ConnectionThread subscriber : subscribers) {
+            subscriber.communicate(Protocol.INVALIDATE_TOKEN + " " + fileName + " " + version, false);
+            if (subscriber.hasFailed()) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+/**
+ * Decides when a load that has not started yet should be hedged, i.e. repeated against another replica, keeping
+ * whichever finishes first. A load is hedged when its first byte takes longer than a percentile of the recent
+ * time-to-first-byte, so only the slowest loads are hedged, however fast or slow the dstores are at the moment.
+ * <p>
+ * Hedges add load to the dstores, which can make things worse when they are all slow, so they are limited by a budget:
+ * every load earns a fraction of a hedge, and a hedge can only be sent if a whole one has been earned.
+ */
+public class HedgePolicy {
+
+    /**
+     * Number of recent loads the threshold is computed from
+     */
+    private static final int WINDOW = 256;
+
+    /**
+     * Loads needed before the threshold is computed from them rather than using the initial delay
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Hedges that can be saved up while loads are fast, to be spent in a burst of slow ones
+     */
+    private static final double MAX_TOKENS = 10;
+
+    private final double percentile;
+    private final double budget;
+    private final long initialDelayMillis;
+
+    private final long[] samples = new long[WINDOW];
+    private int nSamples = 0;
+    private int nextSample = 0;
+
+    private double tokens = 0;
+
+    /**
+     * @param percentile fraction of loads that are not hedged, e.g. 0.95 to hedge the slowest 5%
+     * @param budget maximum number of hedges per load, e.g. 0.05
+     * @param initialDelayMillis how long (in ms) to wait for the first byte until enough loads have been seen
+     */
+    public HedgePolicy(double percentile, double budget, long initialDelayMillis) {
+        this.percentile = percentile;
+        this.budget = budget;
+        this.initialDelayMillis = initialDelayMillis;
+    }
+
+    /**
+     * Records that a load was started, which earns part of a hedge
+     */
+    public synchronized void loadStarted() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+
+    /**
+     * Records how long a load took to receive its first byte
+     */
+    public synchronized void firstByte(long millis) {
+        samples[nextSample] = millis;
+        nextSample = (nextSample + 1) % WINDOW;
+        nSamples = Math.min(nSamples + 1, WINDOW);
+    }
+
+    /**
+     * @return how long (in ms) to wait for the first byte of a load before hedging it
+     */
+    public synchronized long delayMillis() {
+        if (nSamples < MIN_SAMPLES) {
+            return initialDelayMillis;
+        }
+
+        long[] sorted = Arrays.copyOf(samples, nSamples);
+        Arrays.sort(sorted);
+        return Math.max(1, sorted[(int) Math.min(nSamples - 1, Math.ceil(percentile * nSamples))]);
+    }
+
+    /**
+     * Spends a hedge from the budget
+     * @return false if there is none left, in which case the load must not be hedged
+     */
+    public synchronized boolean tryHedge() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
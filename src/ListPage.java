@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.Predicate;
+
+/**
+ * A request for one page of the files whose name starts with a prefix, in name order, so that a client can go through
+ * part of a large namespace without it being sent on a single line.
+ * <p>
+ * Request: LIST_PAGE limit [prefix=p] [after=name]. Up to limit files are listed, starting with the first one after
+ * name, which is the last file of the previous page, or with the first one if there is no previous page.
+ * <p>
+ * Reply: LIST_PAGE MORE|END file1 file2 ... where MORE says there are more files after the last one listed.
+ * <p>
+ * The cursor is a file name rather than a position, so files stored or removed between two pages don't make the next
+ * page skip or repeat any of the others.
+ */
+public class ListPage {
+
+    public static final String MORE = "MORE";
+    public static final String END = "END";
+
+    /**
+     * Files listed in a reply
+     * @param more whether there are more files after the last one
+     */
+    public record Page(List<String> files, boolean more) {
+
+        /**
+         * @return name to continue from, or null if the page is empty
+         */
+        public String last() {
+            return files.isEmpty() ? null : files.get(files.size() - 1);
+        }
+    }
+
+    private final int limit;
+    private final String prefix;
+
+    /**
+     * Last file of the previous page, or null for the first page
+     */
+    private final String after;
+
+    public ListPage(int limit, String prefix, String after) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("A page must have room for at least one file");
+        }
+        this.limit = limit;
+        this.prefix = (prefix == null) ? "" : prefix;
+        this.after = after;
+    }
+
+    /**
+     * @param request LIST_PAGE limit [prefix=p] [after=name] message, as sent by a client
+     */
+    public static ListPage parse(String request) {
+        String[] args = request.split(" ");
+        if (!args[0].equals(Protocol.LIST_PAGE_TOKEN) || (args.length < 2)) {
+            throw new IllegalArgumentException("Not a page request: " + request);
+        }
+
+        String prefix = "";
+        String after = null;
+        for (int i = 2; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            switch (option[0]) {
+                case "prefix" -> prefix = option[1];
+                case "after" -> after = option[1];
+                default -> throw new IllegalArgumentException("Unknown page option " + args[i]);
+            }
+        }
+        return new ListPage(Integer.parseInt(args[1]), prefix, after);
+    }
+
+    /**
+     * @return LIST_PAGE limit [prefix=p] [after=name] message describing this request
+     */
+    public String toRequest() {
+        StringBuilder request = new StringBuilder(Protocol.LIST_PAGE_TOKEN).append(" ").append(limit);
+        if (!prefix.isEmpty()) {
+            request.append(" prefix=").append(prefix);
+        }
+        if (after != null) {
+            request.append(" after=").append(after);
+        }
+        return request.toString();
+    }
+
+    /**
+     * @param reply LIST_PAGE MORE|END file1 file2 ... message, as sent by a Controller
+     */
+    public static Page fromReply(String reply) {
+        String[] args = reply.split(" ");
+        if (!args[0].equals(Protocol.LIST_PAGE_TOKEN) || (args.length < 2)) {
+            throw new IllegalArgumentException("Not a page: " + reply);
+        }
+        return new Page(List.of(args).subList(2, args.length), args[1].equals(MORE));
+    }
+
+    /**
+     * Reads the page from an index sorted by name, skipping over the files that are not listed
+     * @param maxLimit most files a reply may have, whatever limit the client asked for
+     * @return the reply to send
+     */
+    public <V> String reply(NavigableMap<String, V> index, Predicate<V> listed, int maxLimit) {
+        int n = Math.min(limit, maxLimit);
+
+        // every name starting with the prefix comes at or after the prefix itself, and the cursor can only be further
+        NavigableMap<String, V> tail = ((after != null) && (after.compareTo(prefix) >= 0))
+                ? index.tailMap(after, false)
+                : index.tailMap(prefix, true);
+
+        List<String> files = new ArrayList<>();
+        boolean more = false;
+        for (Map.Entry<String, V> entry : tail.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (!listed.test(entry.getValue())) {
+                continue;
+            }
+            if (files.size() == n) {
+                more = true;
+                break;
+            }
+            files.add(entry.getKey());
+        }
+
+        StringBuilder reply = new StringBuilder(Protocol.LIST_PAGE_TOKEN).append(" ").append(more ? MORE : END);
+        for (String fileName : files) {
+            reply.append(" ").append(fileName);
+        }
+        return reply.toString();
+    }
+
+    /**
+     * Merges the pages of several partitions, asked with this request, into the page of the whole namespace
+     */
+    public Page merge(List<Page> pages) {
+        List<String> files = new ArrayList<>();
+        boolean more = false;
+        for (Page page : pages) {
+            files.addAll(page.files());
+            more |= page.more();
+        }
+        files.sort(null);
+
+        // each partition gave its first limit files, so the first limit of them all are among those
+        if (files.size() > limit) {
+            return new Page(List.copyOf(files.subList(0, limit)), true);
+        }
+        return new Page(files, more);
+    }
+}
@@ -0,0 +1,537 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Starts a Controller and some Dstores on this machine, runs a workload against them and reports the throughput and
+ * latency percentiles of each kind of operation.
+ * <p>
+ * Usage: java LoadGenerator [key=value...], e.g.
+ * java LoadGenerator dstores=5 rate=200 duration=60 mix=read:80,write:15,remove:5 sizes=4096:90,1048576:10
+ * <p>
+ * The workload is open loop: operations are started at random times (a Poisson process) at the target rate, whether
+ * or not the earlier ones have finished, like requests from many independent users. Latencies are measured from when
+ * an operation should have started, so a cluster that falls behind shows it in the latencies rather than by quietly
+ * being sent less work. Files are picked from a fixed set of names with a Zipf distribution, so a few files get most of
+ * the reads, writes and removes.
+ * <p>
+ * The files are stored once before the measurement (unless preload=false), so reads find them. Writes and removes of a
+ * file that is already stored or already removed fail, and are reported as errors with the Controller's error token.
+ * <p>
+ * With cport=... and external=true, no cluster is started and the workload is run against the one at that port.
+ * <p>
+ * With controllers=n, the files are partitioned between n Controllers, on ports cport to cport + n - 1, all of them
+ * sharing the Dstores (see Partitions). With followers=n, n FollowerControllers are started after the Dstores, and the
+ * operations are spread between them, so reads are served by the followers and writes are redirected to the
+ * Controllers.
+ * <p>
+ * With faultyDstores=n and faults=spec (see FaultInjector.configure), the first n dstores misbehave: from the start,
+ * or from faultsAt=s seconds into the run, in which case the results before and after are reported separately, to
+ * compare e.g. the p99 with a healthy cluster and with a slow node.
+ */
+public class LoadGenerator {
+
+    enum Operation {
+        READ,
+        WRITE,
+        REMOVE,
+        LIST
+    }
+
+    /**
+     * Results of one kind of operation
+     */
+    static class Stats {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        /**
+         * Number of failures by error token (or exception class)
+         */
+        private final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        void succeeded(long micros) {
+            latencies.record(micros);
+        }
+
+        void failed(Throwable e) {
+            Throwable cause = ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+            String reason = (cause instanceof AsyncClient.ControllerError error)
+                    ? error.getToken() : cause.getClass().getSimpleName();
+            errors.computeIfAbsent(reason, k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    private int cport = 4000;
+    private int r = 3;
+    private int nDstores = 5;
+    private int nControllers = 1;
+    private int nFollowers = 0;
+    private int timeout = 10000;
+    private boolean external = false;
+    private String controllerArgs = "";
+    private String dstoreArgs = "";
+
+    /**
+     * Faults injected into the first faultyDstores dstores, from faultsAt seconds into the run, or from the start if
+     * it is negative
+     */
+    private int faultyDstores = 0;
+    private String faults = "";
+    private int faultsAtSeconds = -1;
+
+    /**
+     * Target rate, in operations per second
+     */
+    private double rate = 100;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+
+    /**
+     * Operations that can be in flight at once. Beyond that new operations are dropped (and reported as such) rather
+     * than queued, so a cluster that can't keep up doesn't make the generator run out of memory.
+     */
+    private int maxInFlight = 10000;
+    private int connections = 64;
+
+    private int nFiles = 1000;
+    private double zipfExponent = 0.99;
+    private boolean preload = true;
+    private long seed = System.nanoTime();
+
+    /**
+     * Weight of each operation in the mix
+     */
+    private final EnumMap<Operation, Double> mix = new EnumMap<>(Operation.class);
+
+    /**
+     * Weight of each file size (in bytes)
+     */
+    private final TreeMap<Integer, Double> sizes = new TreeMap<>();
+
+    private final List<Process> processes = new ArrayList<>();
+    private Path workFolder;
+
+    private final EnumMap<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            switch (option[0]) {
+                case "cport" -> generator.cport = Integer.parseInt(option[1]);
+                case "r" -> generator.r = Integer.parseInt(option[1]);
+                case "dstores" -> generator.nDstores = Integer.parseInt(option[1]);
+                case "controllers" -> generator.nControllers = Integer.parseInt(option[1]);
+                case "followers" -> generator.nFollowers = Integer.parseInt(option[1]);
+                case "timeout" -> generator.timeout = Integer.parseInt(option[1]);
+                case "external" -> generator.external = Boolean.parseBoolean(option[1]);
+                case "controllerArgs" -> generator.controllerArgs = option[1];
+                case "dstoreArgs" -> generator.dstoreArgs = option[1];
+                case "faultyDstores" -> generator.faultyDstores = Integer.parseInt(option[1]);
+                case "faults" -> generator.faults = option[1];
+                case "faultsAt" -> generator.faultsAtSeconds = Integer.parseInt(option[1]);
+                case "rate" -> generator.rate = Double.parseDouble(option[1]);
+                case "duration" -> generator.durationSeconds = Integer.parseInt(option[1]);
+                case "warmup" -> generator.warmupSeconds = Integer.parseInt(option[1]);
+                case "maxInFlight" -> generator.maxInFlight = Integer.parseInt(option[1]);
+                case "connections" -> generator.connections = Integer.parseInt(option[1]);
+                case "files" -> generator.nFiles = Integer.parseInt(option[1]);
+                case "zipf" -> generator.zipfExponent = Double.parseDouble(option[1]);
+                case "preload" -> generator.preload = Boolean.parseBoolean(option[1]);
+                case "seed" -> generator.seed = Long.parseLong(option[1]);
+                case "mix" -> parseWeights(option[1], name -> Operation.valueOf(name.toUpperCase()), generator.mix);
+                case "sizes" -> parseWeights(option[1], Integer::parseInt, generator.sizes);
+                default -> System.err.println("Unknown option " + arg);
+            }
+        }
+
+        if (generator.mix.isEmpty()) {
+            parseWeights("read:70,write:20,remove:5,list:5", name -> Operation.valueOf(name.toUpperCase()), generator.mix);
+        }
+        if (generator.sizes.isEmpty()) {
+            parseWeights("1024:50,65536:40,1048576:10", Integer::parseInt, generator.sizes);
+        }
+
+        try {
+            generator.run();
+        } finally {
+            generator.stopCluster();
+        }
+    }
+
+    /**
+     * Parses weights given as key:weight,key:weight,...
+     */
+    private static <K> void parseWeights(String weights, Function<String, K> key, Map<K, Double> into) {
+        into.clear();
+        for (String entry : weights.split(",")) {
+            String[] parts = entry.split(":");
+            into.put(key.apply(parts[0]), Double.parseDouble(parts[1]));
+        }
+    }
+
+    private void run() throws Exception {
+        if (!external) {
+            startCluster();
+        }
+
+        Random random = new Random(seed);
+        ZipfDistribution popularity = new ZipfDistribution(nFiles, zipfExponent);
+        WeightedChoice<Operation> operations = new WeightedChoice<>(mix);
+        WeightedChoice<Integer> fileSizes = new WeightedChoice<>(sizes);
+
+        // one buffer of random content for each size, shared by all the writes of that size
+        Map<Integer, byte[]> contents = new HashMap<>();
+        for (int size : sizes.keySet()) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            contents.put(size, content);
+        }
+
+        // a client for each follower, or for the Controllers if there are none
+        List<AsyncClient> clients = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, nFollowers); i++) {
+            clients.add(new AsyncClient((nFollowers > 0) ? followerPort(i) : cport, timeout, connections));
+        }
+
+        try {
+            for (AsyncClient client : clients) {
+                awaitCluster(client);
+            }
+            AsyncClient client = clients.get(0);
+
+            if (preload) {
+                System.out.println("Storing " + nFiles + " files");
+                AtomicInteger failed = new AtomicInteger();
+                List<CompletableFuture<Void>> stores = new ArrayList<>();
+                for (int i = 0; i < nFiles; i++) {
+                    stores.add(client.store(fileName(i), contents.get(fileSizes.next(random))).exceptionally(e -> {
+                        failed.incrementAndGet();
+                        return null;
+                    }));
+                }
+                CompletableFuture.allOf(stores.toArray(new CompletableFuture<?>[0])).join();
+                if (failed.get() > 0) {
+                    System.err.println("Could not store " + failed.get() + " of the files");
+                }
+            }
+
+            if (warmupSeconds > 0) {
+                System.out.println("Warming up for " + warmupSeconds + " s");
+                generate(clients, random, popularity, operations, fileSizes, contents, warmupSeconds);
+            }
+
+            int healthySeconds = (faultyDstores > 0) ? Math.max(0, faultsAtSeconds) : durationSeconds;
+            if (healthySeconds > 0) {
+                System.out.printf("Running %.0f ops/s for %d s%n", rate, healthySeconds);
+                stats.clear();
+                dropped.set(0);
+                report(generate(clients, random, popularity, operations, fileSizes, contents, healthySeconds));
+            }
+
+            if (healthySeconds < durationSeconds) {
+                if (faultsAtSeconds >= 0) {
+                    injectFaults();
+                }
+
+                int faultySeconds = durationSeconds - healthySeconds;
+                System.out.printf("%nRunning %.0f ops/s for %d s with faults in %d dstores%n", rate, faultySeconds,
+                        faultyDstores);
+                stats.clear();
+                dropped.set(0);
+                report(generate(clients, random, popularity, operations, fileSizes, contents, faultySeconds));
+            }
+        } finally {
+            clients.forEach(AsyncClient::close);
+        }
+    }
+
+    /**
+     * Starts operations at the target rate for the given time, taking turns between the clients, then waits for them to
+     * finish
+     * @return nanoseconds from the start until the last operation finished
+     */
+    private long generate(List<AsyncClient> clients, Random random, ZipfDistribution popularity,
+                          WeightedChoice<Operation> operations, WeightedChoice<Integer> fileSizes,
+                          Map<Integer, byte[]> contents, int seconds) throws InterruptedException {
+
+        for (Operation operation : Operation.values()) {
+            stats.computeIfAbsent(operation, k -> new Stats());
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long nextProgress = start + TimeUnit.SECONDS.toNanos(1);
+        long started = 0;
+
+        // scheduled start of the next operation, which does not depend on when the previous ones finished
+        double scheduled = start;
+        while (scheduled < end) {
+            long intended = (long) scheduled;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            if (inFlight.get() >= maxInFlight) {
+                dropped.incrementAndGet();
+            } else {
+                Operation operation = operations.next(random);
+                String fileName = fileName(popularity.next(random));
+                inFlight.incrementAndGet();
+                AsyncClient client = clients.get((int) (started % clients.size()));
+                start(client, operation, fileName, contents.get(fileSizes.next(random))).whenComplete((result, e) -> {
+                    long micros = (System.nanoTime() - intended) / 1000;
+                    if (e == null) {
+                        stats.get(operation).succeeded(micros);
+                    } else {
+                        stats.get(operation).failed(e);
+                    }
+                    inFlight.decrementAndGet();
+                });
+                started++;
+            }
+
+            long now = System.nanoTime();
+            if (now >= nextProgress) {
+                System.out.printf("%d s: %d started, %d in flight, %d dropped%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start), started, inFlight.get(), dropped.get());
+                nextProgress += TimeUnit.SECONDS.toNanos(1);
+            }
+
+            // exponentially distributed gaps between operations
+            scheduled += -Math.log(1 - random.nextDouble()) / rate * 1e9;
+        }
+
+        while (inFlight.get() > 0) {
+            Thread.sleep(10);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static CompletableFuture<?> start(AsyncClient client, Operation operation, String fileName, byte[] content) {
+        return switch (operation) {
+            case READ -> client.load(fileName);
+            case WRITE -> client.store(fileName, content);
+            case REMOVE -> client.remove(fileName);
+            case LIST -> client.list();
+        };
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+
+        System.out.println();
+        System.out.printf("%-7s %9s %9s %9s %9s %9s %9s %9s %9s %9s%n",
+                "op", "ok", "errors", "ok/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Operation operation : Operation.values()) {
+            Stats result = stats.get(operation);
+            LatencyHistogram latencies = result.latencies;
+            long errors = result.errors.values().stream().mapToLong(AtomicLong::get).sum();
+            total += latencies.getCount() + errors;
+
+            System.out.printf("%-7s %9d %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    operation.name().toLowerCase(), latencies.getCount(), errors, latencies.getCount() / seconds,
+                    latencies.getMean() / 1000, latencies.getPercentile(50) / 1000.0,
+                    latencies.getPercentile(90) / 1000.0, latencies.getPercentile(99) / 1000.0,
+                    latencies.getPercentile(99.9) / 1000.0, latencies.getMax() / 1000.0);
+            result.errors.forEach((reason, n) -> System.out.println("        " + reason + ": " + n));
+        }
+
+        System.out.printf("%nTotal: %.1f ops/s (target %.1f) over %.1f s, %d dropped%n", total / seconds, rate, seconds,
+                dropped.get());
+        if (dropped.get() > 0) {
+            System.out.println("The cluster could not keep up with the target rate");
+        }
+    }
+
+    private static String fileName(int i) {
+        return "file" + i;
+    }
+
+    /**
+     * Starts the Controllers and the Dstores as separate processes, each logging to a file in a temporary folder
+     */
+    private void startCluster() throws IOException {
+        workFolder = Files.createTempDirectory("loadgen");
+        System.out.println("Starting " + nControllers + " Controllers, " + nDstores + " Dstores and " + nFollowers
+                + " followers, logging to " + workFolder);
+
+        StringJoiner controllerPorts = new StringJoiner(",");
+        for (int i = 0; i < nControllers; i++) {
+            controllerPorts.add(String.valueOf(cport + i));
+        }
+
+        for (int i = 0; i < nControllers; i++) {
+            List<String> controller = new ArrayList<>(List.of(
+                    String.valueOf(cport + i), String.valueOf(r), String.valueOf(timeout), "1000000"));
+            controller.addAll(splitArgs(controllerArgs));
+            if (nControllers > 1) {
+                controller.add("controllers=" + controllerPorts);
+            }
+            processes.add(startProcess("Controller", controller, "controller-" + (cport + i) + ".log"));
+        }
+
+        for (int i = 0; i < nDstores; i++) {
+            int port = dstorePort(i);
+            List<String> dstore = new ArrayList<>(List.of(String.valueOf(port), String.valueOf(cport),
+                    String.valueOf(timeout), workFolder.resolve("dstore-" + port).toString()));
+            dstore.addAll(splitArgs(dstoreArgs));
+            if (nControllers > 1) {
+                dstore.add("controllers=" + controllerPorts);
+            }
+            if (i < faultyDstores) {
+                // faults injected later are sent with FAULTS, which the dstore must be told to accept
+                dstore.add("faults=" + ((faultsAtSeconds < 0) ? faults : "runtime"));
+            }
+            processes.add(startProcess("Dstore", dstore, "dstore-" + port + ".log"));
+        }
+
+        for (int i = 0; i < nFollowers; i++) {
+            int port = followerPort(i);
+            List<String> follower = List.of(String.valueOf(port), String.valueOf(cport), String.valueOf(timeout));
+            processes.add(startProcess("FollowerController", follower, "follower-" + port + ".log"));
+        }
+    }
+
+    /**
+     * Sends FAULTS to the first faultyDstores dstores
+     */
+    private void injectFaults() throws IOException {
+        for (int i = 0; i < faultyDstores; i++) {
+            int port = dstorePort(i);
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setSoTimeout(timeout);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                out.println(Protocol.FAULTS_TOKEN + " " + faults);
+                if (!Protocol.ACK_TOKEN.equals(in.readLine())) {
+                    throw new IOException("Dstore " + port + " did not accept the faults");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return port of the i-th dstore, which come after the Controllers' ports
+     */
+    private int dstorePort(int i) {
+        return cport + nControllers + i;
+    }
+
+    /**
+     * @return port of the i-th follower, which come after the Dstores' ports
+     */
+    private int followerPort(int i) {
+        return cport + nControllers + nDstores + i;
+    }
+
+    private Process startProcess(String mainClass, List<String> args, String logName) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), mainClass));
+        command.addAll(args);
+
+        File log = workFolder.resolve(logName).toFile();
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+    }
+
+    private static List<String> splitArgs(String args) {
+        return args.isBlank() ? List.of() : List.of(args.trim().split(" +"));
+    }
+
+    /**
+     * Waits until the Controller accepts connections and has enough Dstores to answer a LIST
+     */
+    private void awaitCluster(AsyncClient client) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            try {
+                client.list().join();
+                return;
+            } catch (CompletionException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Cluster did not start in " + timeout + " ms", e.getCause());
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void stopCluster() {
+        processes.forEach(Process::destroy);
+        for (Process process : processes) {
+            try {
+                process.waitFor(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Picks one of some values with probability proportional to its weight
+     */
+    static class WeightedChoice<T> {
+
+        private final List<T> values = new ArrayList<>();
+        private final double[] cumulative;
+
+        WeightedChoice(Map<T, Double> weights) {
+            cumulative = new double[weights.size()];
+            double total = 0;
+            for (Map.Entry<T, Double> entry : weights.entrySet()) {
+                total += entry.getValue();
+                cumulative[values.size()] = total;
+                values.add(entry.getKey());
+            }
+        }
+
+        T next(Random random) {
+            double x = random.nextDouble() * cumulative[cumulative.length - 1];
+            int i = Arrays.binarySearch(cumulative, x);
+            return values.get(Math.min(values.size() - 1, (i >= 0) ? i + 1 : -i - 1));
+        }
+    }
+
+    /**
+     * Picks an integer between 0 and n - 1, i with probability proportional to 1 / (i + 1)^exponent, so 0 is the most
+     * popular. An exponent of 0 picks them all with the same probability.
+     */
+    static class ZipfDistribution {
+
+        private final double[] cumulative;
+
+        ZipfDistribution(int n, double exponent) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = total;
+            }
+        }
+
+        int next(Random random) {
+            double x = random.nextDouble() * cumulative[cumulative.length - 1];
+            int i = Arrays.binarySearch(cumulative, x);
+            return Math.min(cumulative.length - 1, (i >= 0) ? i + 1 : -i - 1);
+        }
+    }
+}
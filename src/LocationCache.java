@@ -0,0 +1,90 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers where files are stored, so a client can load a file it has loaded recently straight from a dstore,
+ * without asking the Controller first. Entries expire after a while, and only the most recently used ones are kept.
+ * <p>
+ * An entry can go stale if the file is removed, or moved off one of its dstores, while it is cached. The Controller
+ * pushes INVALIDATE messages when a file is removed, and a client that fails to load a file from the cached dstores
+ * drops the entry and asks the Controller again, so a stale entry costs a retry rather than a failed load.
+ */
+public class LocationCache {
+
+    /**
+     * Where a file is stored, as replied in LOCATIONS
+     * @param version changes every time a file with this name is stored
+     * @param ports dstores holding the file
+     * @param expiresAt when the entry stops being used (in ms since the epoch)
+     */
+    public record Location(int fileSize, long version, List<Integer> ports, long expiresAt) {
+    }
+
+    private final long ttlMillis;
+
+    /**
+     * Entries in access order, so the least recently used one is evicted first
+     */
+    private final LinkedHashMap<String, Location> locations;
+
+    /**
+     * @param maxEntries number of files whose location is kept
+     * @param ttlMillis how long (in ms) a location is used for before asking the Controller again
+     */
+    public LocationCache(int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.locations = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return where a file is stored, or null if it is not cached or the entry has expired
+     */
+    public synchronized Location get(String fileName) {
+        Location location = locations.get(fileName);
+        if ((location != null) && (location.expiresAt() < System.currentTimeMillis())) {
+            locations.remove(fileName);
+            return null;
+        }
+        return location;
+    }
+
+    public synchronized void put(String fileName, int fileSize, long version, List<Integer> ports) {
+        Location cached = locations.get(fileName);
+        // replies to concurrent requests can arrive out of order, and the newer location must win
+        if ((cached != null) && (cached.version() > version)) {
+            return;
+        }
+        locations.put(fileName, new Location(fileSize, version, List.copyOf(ports),
+                System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Drops the entry of a file, e.g. after failing to load it from the cached dstores
+     */
+    public synchronized void invalidate(String fileName) {
+        locations.remove(fileName);
+    }
+
+    /**
+     * Drops the entry of a file if it is not newer than the given version, as told by an INVALIDATE message
+     */
+    public synchronized void invalidate(String fileName, long version) {
+        Location cached = locations.get(fileName);
+        if ((cached != null) && (cached.version() <= version)) {
+            locations.remove(fileName);
+        }
+    }
+
+    /**
+     * Drops every entry, e.g. when invalidations may have been missed
+     */
+    public synchronized void clear() {
+        locations.clear();
+    }
+}
@@ -6,6 +6,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Date;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Networking end of the Controller class
@@ -20,9 +22,9 @@ public class NetworkController implements Runnable {
     /**
      * Messages received from the connection threads that need to be handled by the Controller
      */
-    protected final ConcurrentLinkedQueue<Message> tasks;
+    protected final FairTaskQueue tasks;
 
-    public NetworkController(int cport, ConcurrentLinkedQueue<Message> tasks) {
+    public NetworkController(int cport, FairTaskQueue tasks) {
         this.cport = cport;
         this.tasks = tasks;
     }
@@ -71,9 +73,9 @@ public class NetworkController implements Runnable {
 
     static class ClientThread extends ConnectionThread implements Runnable {
 
-        private final ConcurrentLinkedQueue<Message> tasks;
+        private final FairTaskQueue tasks;
 
-        public ClientThread(Socket socket, ConcurrentLinkedQueue<Message> tasks, BufferedReader in, PrintWriter out) {
+        public ClientThread(Socket socket, FairTaskQueue tasks, BufferedReader in, PrintWriter out) {
             super(socket, in, out);
             this.tasks = tasks;
         }
@@ -86,22 +88,36 @@ public class NetworkController implements Runnable {
             try {
                 String msg;
 
-                while ((msg = in.readLine()) != null) {
+                while ((msg = readLine()) != null) {
 
                     // if any message starts with JOIN, we will start a new dstore thread and interrupt the current client one
                     if (msg.startsWith(Protocol.JOIN_TOKEN)) {
-                        int port = Integer.parseInt(msg.split(" ")[1]);
-                        Thread dstoreThread = new Thread(new DstoreThread(socket, port, tasks, in, out));
+                        String[] join = msg.split(" ");
+                        int port = Integer.parseInt(join[1]);
+                        DstoreThread dstore = new DstoreThread(transport, port, tasks);
+
+                        // JOIN port capacity free queuedepth, although older dstores only send the port
+                        if (join.length >= 5) {
+                            dstore.updateStatus(join, 2);
+                        }
+
+                        Thread dstoreThread = new Thread(dstore);
                         dstoreThread.start();
                         Thread.currentThread().interrupt();
                         break;
                     }
 
                     System.out.println("Received from client: " + msg);
-                    tasks.add(new Message(msg, this));
+                    if (!tasks.offer(new Message(msg, this))) {
+                        System.err.println("Overloaded, rejecting " + msg);
+                        communicate(Protocol.ERROR_OVERLOADED_TOKEN);
+                    }
                 }
             } catch (Exception e) {
                 System.err.println("Could not read message from Client");
+            } finally {
+                Controller.subscribers.remove(this);
+                tasks.remove(this);
             }
         }
     }
@@ -113,70 +129,249 @@ public class NetworkController implements Runnable {
          */
         private final int port;
 
-        private final ConcurrentLinkedQueue<Message> tasks;
+        private final FairTaskQueue tasks;
 
-        private final ConcurrentLinkedQueue<String> storeAcks;
-        private final ConcurrentLinkedQueue<String> removeAcks;
+        /**
+         * Number by which the index refers to this dstore (see DstoreIds)
+         */
+        private final int id;
 
+        /**
+         * Files in the index that this dstore holds, kept up to date by FileProperties, so that placing a file doesn't
+         * have to count them
+         */
+        private final AtomicInteger storedFiles = new AtomicInteger();
 
-        public DstoreThread(Socket socket, int port, ConcurrentLinkedQueue<Message> tasks, BufferedReader in, PrintWriter out) {
-            super(socket, in, out);
+        /**
+         * Acknowledgements expected from the dstore, by file name, completed when they arrive
+         */
+        private final ConcurrentHashMap<String, CompletableFuture<Void>> storeAcks = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, CompletableFuture<Void>> removeAcks = new ConcurrentHashMap<>();
+
+        /**
+         * Space the dstore may use, as last reported in JOIN or STATUS, or -1 if it never reported it
+         */
+        private volatile long capacity = -1;
+
+        /**
+         * Free space, as last reported by the dstore
+         */
+        private volatile long freeBytes;
+
+        /**
+         * Operations waiting or running on the dstore, as last reported by it
+         */
+        private volatile int queueDepth;
+
+        /**
+         * Bytes of the files placed on this dstore that it has not acknowledged yet, and so are not included in the
+         * free space it reports
+         */
+        private final AtomicLong reservedBytes = new AtomicLong();
+
+        /**
+         * Learns how regularly the dstore's messages arrive, to tell when it has probably failed
+         */
+        private final FailureDetector failureDetector = new FailureDetector(
+                Controller.phiThreshold, Controller.minHeartbeatStdMillis, Controller.acceptablePauseMillis
+        );
+
+        /**
+         * Whether the dstore was suspected the last time the failure monitor checked it
+         */
+        private boolean reportedSuspected;
+
+
+        /**
+         * Faults injected into the connection to the dstore, e.g. to lose some of its acks
+         */
+        private final FaultInjector faults;
+
+        public DstoreThread(Transport transport, int port, FairTaskQueue tasks) {
+            this(new FaultInjector(), transport, port, tasks);
+        }
+
+        private DstoreThread(FaultInjector faults, Transport transport, int port, FairTaskQueue tasks) {
+            super(new FaultyTransport(transport, faults));
+            this.faults = faults;
             this.port = port;
             this.tasks = tasks;
-            this.storeAcks = new ConcurrentLinkedQueue<>();
-            this.removeAcks = new ConcurrentLinkedQueue<>();
+            this.id = DstoreIds.getInstance().register(this);
         }
 
         public int getPort() {
             return port;
         }
 
+        public int getId() {
+            return id;
+        }
+
+        public AtomicInteger getStoredFiles() {
+            return storedFiles;
+        }
+
+        public FaultInjector getFaults() {
+            return faults;
+        }
+
+        /**
+         * Reads capacity, free bytes and queue depth from a JOIN or STATUS message
+         * @param fields the message, split by spaces
+         * @param from position of the capacity in the message
+         */
+        public void updateStatus(String[] fields, int from) {
+            capacity = Long.parseLong(fields[from]);
+            freeBytes = Long.parseLong(fields[from + 1]);
+            queueDepth = Integer.parseInt(fields[from + 2]);
+        }
+
+        /**
+         * @return how many more bytes can be placed on this dstore, which is unlimited if it does not report its space
+         */
+        public long getHeadroom() {
+            return (capacity < 0) ? Long.MAX_VALUE : freeBytes - reservedBytes.get();
+        }
+
+        /**
+         * @return fraction of the dstore's capacity that is used or reserved, 0 if it does not report its space
+         */
+        public double getUtilisation() {
+            return (capacity <= 0) ? 0 : 1 - ((double) getHeadroom() / capacity);
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return whether the dstore has gone quiet for much longer than usual, in which case it gets no new files and
+         * clients are not sent to it, until it is heard from again
+         */
+        public boolean isSuspected() {
+            return failureDetector.isSuspected(Controller.clock.millis());
+        }
+
+        /**
+         * Called periodically by the failure monitor
+         * @return whether the dstore became suspected, or stopped being suspected, since the last call
+         */
+        public boolean updateSuspected() {
+            boolean suspected = isSuspected();
+            boolean changed = suspected != reportedSuspected;
+            reportedSuspected = suspected;
+            return changed;
+        }
+
+        public void reserve(long bytes) {
+            reservedBytes.addAndGet(bytes);
+        }
+
+        public void release(long bytes) {
+            reservedBytes.addAndGet(-bytes);
+        }
+
+        /**
+         * Starts tracking the dstore once it has joined, which counts as its first heartbeat
+         */
+        public void joined() {
+            failureDetector.heartbeat(Controller.clock.millis());
+            Controller.addDstore(this);
+        }
+
         @Override
         public void run() {
 
-            Controller.addDstore(this);
+            joined();
 
             System.out.println("New DstoreThread started");
 
-            // constantly listen for incoming messages and add them to tasks
+            // constantly listen for incoming messages and handle them
             try {
                 String msg;
 
                 // loop that reads from a dstore
-                while ((msg = in.readLine()) != null) {
-                    System.out.println("Received from Dstore: " + msg);
-                    String fileName = msg.split(" ")[1];
-
-                     if (msg.startsWith(Protocol.STORE_ACK_TOKEN)) {
-                        storeAcks.add(fileName);
-                     } else if (msg.startsWith(Protocol.REMOVE_ACK_TOKEN)) {
-                         removeAcks.add(fileName);
-                     } else {
-                         tasks.add(new Message(msg, this));
-                     }
+                while ((msg = readLine()) != null) {
+                    handleLine(msg);
                 }
+
+                // the dstore closed the connection
+                System.err.println("Dstore " + port + " disconnected");
+                Controller.removeDstore(this);
             } catch (IOException e) {
                 System.err.println("Could not read message from Dstore");
                 Controller.removeDstore(this);
+            } finally {
+                tasks.remove(this);
+                DstoreIds.getInstance().release(id);
             }
         }
 
-        public void awaitForStoreAcks(String fileName) {
-            while (true) {
-                if (storeAcks.remove(fileName)) {
-                    break;
-                }
+        /**
+         * Handles a line received from the dstore: acknowledgements complete the operation waiting for them, status
+         * reports are recorded, and anything else is left to the Controller's main loop
+         */
+        public void handleLine(String msg) {
+            // periodic reports are not worth printing
+            if (msg.startsWith(Protocol.STATUS_TOKEN)) {
+                failureDetector.heartbeat(Controller.clock.millis());
+                updateStatus(msg.split(" "), 1);
+                return;
+            }
+
+            // any other message shows the dstore is alive, but only the periodic reports give the usual interval
+            failureDetector.seen(Controller.clock.millis());
+
+            System.out.println("Received from Dstore: " + msg);
+
+            if (msg.startsWith(Protocol.STORE_ACK_TOKEN)) {
+                acknowledge(storeAcks, msg.split(" ")[1]);
+            } else if (msg.startsWith(Protocol.REMOVE_ACK_TOKEN)) {
+                acknowledge(removeAcks, msg.split(" ")[1]);
+            } else {
+                tasks.add(new Message(msg, this));
             }
         }
 
-        public void awaitForRemoveAcks(String fileName) {
-            while (true) {
-                if (removeAcks.remove(fileName)) {
-                    break;
-                }
+        /**
+         * Acknowledgements that nobody is waiting for (any more) are ignored
+         */
+        private static void acknowledge(ConcurrentHashMap<String, CompletableFuture<Void>> acks, String fileName) {
+            CompletableFuture<Void> ack = acks.remove(fileName);
+            if (ack != null) {
+                ack.complete(null);
             }
         }
 
+        /**
+         * Must be called before the dstore can send the acknowledgement, i.e. before it or the client is told to store
+         * @return completes when the dstore sends STORE_ACK for the file
+         */
+        public CompletableFuture<Void> expectStoreAck(String fileName) {
+            CompletableFuture<Void> ack = new CompletableFuture<>();
+            storeAcks.put(fileName, ack);
+            return ack;
+        }
+
+        /**
+         * Must be called before the dstore is told to remove the file
+         * @return completes when the dstore sends REMOVE_ACK for the file
+         */
+        public CompletableFuture<Void> expectRemoveAck(String fileName) {
+            CompletableFuture<Void> ack = new CompletableFuture<>();
+            removeAcks.put(fileName, ack);
+            return ack;
+        }
+
+        /**
+         * Stops waiting for an acknowledgement, e.g. after a timeout, unless another one has been expected since
+         * @param ack future returned by expectStoreAck or expectRemoveAck
+         */
+        public void cancelAck(String fileName, CompletableFuture<Void> ack) {
+            storeAcks.remove(fileName, ack);
+            removeAcks.remove(fileName, ack);
+        }
+
 //        public void timeout(String fileName, int timeout, ConcurrentLinkedQueue<String> acks) throws TimeoutException {
 //            long startTime = System.currentTimeMillis();
 //            long elapsedTime = 0L;
@@ -1,6 +1,6 @@
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.*;
 
 /**
  * Networking end of the Dstore class
@@ -13,42 +13,70 @@ public class NetworkDstore implements Runnable {
     private final int port;
 
     /**
-     * Controller's port
+     * Controllers to join, each of them in charge of some of the files
      */
-    private final int cport;
+    private final Partitions controllers;
 
     private final int timeout;
 
     /**
      * Messages received from the connection threads that need to be handled by the Dstore
      */
-    private final ConcurrentLinkedQueue<Message> tasks;
+    private final BlockingQueue<Message> tasks;
 
-    public NetworkDstore(int port, int cport, int timeout, ConcurrentLinkedQueue<Message> tasks) {
+    public NetworkDstore(int port, Partitions controllers, int timeout, BlockingQueue<Message> tasks) {
         this.port = port;
-        this.cport = cport;
+        this.controllers = controllers;
         this.timeout = timeout;
         this.tasks = tasks;
     }
 
     @Override
     public void run() {
-        Socket socketToController;
+        ControllerThread[] controllerThreads = new ControllerThread[controllers.size()];
         try {
-            // Create a new socket to cport (the Controller) and set the timeout
-            socketToController = new Socket(InetAddress.getLoopbackAddress(), cport);
+            for (int i = 0; i < controllers.size(); i++) {
+                // Create a new socket to the Controller in charge of partition i
+                Socket socketToController = new Socket(InetAddress.getLoopbackAddress(), controllers.getPort(i));
 
-            // Initialise I/O
-            BufferedReader in = new BufferedReader(new InputStreamReader(socketToController.getInputStream()));
-            PrintWriter out = new PrintWriter(socketToController.getOutputStream(), true);
+                // Initialise I/O
+                BufferedReader in = new BufferedReader(new InputStreamReader(socketToController.getInputStream()));
+                PrintWriter out = new PrintWriter(socketToController.getOutputStream(), true);
 
-            // Start a new thread that will take care of the Controller connection
-            Thread controllerConnection = new Thread(new ControllerThread(socketToController, in, out, port, tasks));
-            controllerConnection.start();
+                Transport transport = new FaultyTransport(new SocketTransport(socketToController, in, out), Dstore.faults);
+                controllerThreads[i] = new ControllerThread(transport, port, tasks);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
+        // each file's acks go to the Controller in charge of it, which is the one that is waiting for them
+        Dstore.setDstoreListener(new DstoreListener() {
+            @Override
+            public void fileStored(String fileName) {
+                controllerFor(fileName).communicate(Protocol.STORE_ACK_TOKEN + " " + fileName);
+            }
+
+            @Override
+            public void fileRemoved(String fileName) {
+                controllerFor(fileName).communicate(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
+            }
+
+            @Override
+            public void errorFileDoesNotExist(String fileName) {
+                controllerFor(fileName).communicate(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
+            }
+
+            private ControllerThread controllerFor(String fileName) {
+                return controllerThreads[controllers.partitionOf(fileName)];
+            }
+        });
+
+        // Start a thread for each Controller connection
+        for (ControllerThread controllerThread : controllerThreads) {
+            new Thread(controllerThread).start();
+        }
+
         // Create a ServerSocket that accepts connections from Clients in port
         try (ServerSocket ss = new ServerSocket(port)) {
 
@@ -63,7 +91,8 @@ public class NetworkDstore implements Runnable {
                     BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
                     PrintWriter out = new PrintWriter(client.getOutputStream(), true);
 
-                    Thread clientThread = new Thread(new ClientThread(client, in, out, tasks));
+                    Transport transport = new FaultyTransport(new SocketTransport(client, in, out), Dstore.faults);
+                    Thread clientThread = new Thread(new ClientThread(transport, tasks));
                     clientThread.start();
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -82,66 +111,56 @@ public class NetworkDstore implements Runnable {
          */
         private final int port;
 
-        private final ConcurrentLinkedQueue<Message> tasks;
-
-        private final DstoreListener dstoreListener;
-
-        private final ControllerThread ct;
+        private final BlockingQueue<Message> tasks;
 
         public ControllerThread(
-                Socket socket,
-                BufferedReader in,
-                PrintWriter out,
+                Transport transport,
                 int port,
-                ConcurrentLinkedQueue<Message> tasks
+                BlockingQueue<Message> tasks
         ) {
-            super(socket, in, out);
+            super(transport);
             this.port = port;
             this.tasks = tasks;
-            this.ct = this;
-            this.dstoreListener = new DstoreListener() {
-                @Override
-                public void fileStored(String fileName) {
-                    ct.communicate(Protocol.STORE_ACK_TOKEN + " " + fileName);
-                }
-
-                @Override
-                public void fileRemoved(String fileName) {
-                    ct.communicate(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
-                }
-
-                @Override
-                public void errorFileDoesNotExist(String fileName) {
-                    ct.communicate(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
-                }
-            };
-
-            Dstore.setDstoreListener(this.dstoreListener);
         }
 
         @Override
         public void run() {
-            // We send JOIN port to the Controller
-            this.communicate(Protocol.JOIN_TOKEN + " " + port);
+            // We send JOIN port capacity free queuedepth to the Controller, and then keep it up to date with STATUS
+            this.communicate(Protocol.JOIN_TOKEN + " " + port + " " + Dstore.status());
+
+            // files kept from a previous run are only served once the Controller knows this dstore has them
+            if (Dstore.keepData) {
+                for (String inventory : Dstore.inventory()) {
+                    this.communicate(inventory);
+                }
+            }
+
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(
+                    () -> this.communicate(Protocol.STATUS_TOKEN + " " + Dstore.status(), false),
+                    Dstore.statusIntervalMillis, Dstore.statusIntervalMillis, TimeUnit.MILLISECONDS
+            );
 
             String msg;
             try {
-                while ((msg = in.readLine()) != null) {
+                while ((msg = readLine()) != null) {
                     System.out.println("Received from Controller: " + msg);
                     tasks.add(new Message(msg, this));
                 }
             } catch (Exception e) {
                 System.err.println("Could not read message from Controller");
+            } finally {
+                reporter.shutdownNow();
             }
         }
     }
 
     static class ClientThread extends ConnectionThread implements Runnable {
 
-        private final ConcurrentLinkedQueue<Message> tasks;
+        private final BlockingQueue<Message> tasks;
 
-        public ClientThread(Socket socket, BufferedReader in, PrintWriter out, ConcurrentLinkedQueue<Message> tasks) {
-            super(socket, in, out);
+        public ClientThread(Transport transport, BlockingQueue<Message> tasks) {
+            super(transport);
             this.tasks = tasks;
         }
 
@@ -152,10 +171,12 @@ public class NetworkDstore implements Runnable {
 
             try {
                 // it should only run once, for the STORE or LOAD command
-                while ((msg = in.readLine()) != null) {
+                while ((msg = readLine()) != null) {
 
-                    // we will ensure it's a STORE or LOAD command
-                    if ((msg.startsWith(Protocol.STORE_TOKEN)) || (msg.startsWith(Protocol.LOAD_TOKEN))) {
+                    // we will ensure it's a STORE or LOAD command, a copy from another dstore, or faults to inject
+                    if ((msg.startsWith(Protocol.STORE_TOKEN)) || (msg.startsWith(Protocol.LOAD_TOKEN))
+                            || (msg.startsWith(Protocol.REBALANCE_STORE_TOKEN))
+                            || (msg.startsWith(Protocol.FAULTS_TOKEN))) {
                         System.out.println("Received from Client: " + msg);
                         tasks.add(new Message(msg, this));
                         break;
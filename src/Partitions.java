@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * Splits the files between several Controllers by the hash of their name, so that each Controller only keeps the
+ * index of its own share of the files, while all of them place files on the same Dstores. Every Controller, Dstore and
+ * client must be given the same list of Controller ports, in the same order.
+ * <p>
+ * String.hashCode is specified by the language, so every process finds the same Controller for a file.
+ * <p>
+ * A Dstore reports its free space to every Controller, but each Controller only reserves space for the stores it is
+ * placing itself, so Controllers placing large files on the same Dstore at the same time may count on the same bytes.
+ */
+public class Partitions {
+
+    /**
+     * Port of the Controller in charge of each partition
+     */
+    private final int[] ports;
+
+    public Partitions(int... ports) {
+        if (ports.length == 0) {
+            throw new IllegalArgumentException("There must be at least one Controller");
+        }
+        this.ports = ports.clone();
+    }
+
+    /**
+     * @param ports Controller ports separated by commas, e.g. 4000,4001,4002
+     */
+    public static Partitions parse(String ports) {
+        return new Partitions(Arrays.stream(ports.split(",")).mapToInt(Integer::parseInt).toArray());
+    }
+
+    /**
+     * @param reply PARTITIONS port1 port2 ... message, as sent by a Controller
+     */
+    public static Partitions fromReply(String reply) {
+        String[] args = reply.split(" ");
+        if (!args[0].equals(Protocol.PARTITIONS_TOKEN) || (args.length < 2)) {
+            throw new IllegalArgumentException("Not a partition map: " + reply);
+        }
+        return new Partitions(Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray());
+    }
+
+    /**
+     * @return PARTITIONS port1 port2 ... message describing this map
+     */
+    public String toReply() {
+        StringBuilder reply = new StringBuilder(Protocol.PARTITIONS_TOKEN);
+        for (int port : ports) {
+            reply.append(" ").append(port);
+        }
+        return reply.toString();
+    }
+
+    public int size() {
+        return ports.length;
+    }
+
+    public int partitionOf(String fileName) {
+        return Math.floorMod(fileName.hashCode(), ports.length);
+    }
+
+    /**
+     * @return port of the Controller in charge of a file
+     */
+    public int controllerFor(String fileName) {
+        return ports[partitionOf(fileName)];
+    }
+
+    public int getPort(int partition) {
+        return ports[partition];
+    }
+
+    /**
+     * @return partition of the Controller at a port, or -1 if it is not one of them
+     */
+    public int indexOf(int port) {
+        for (int i = 0; i < ports.length; i++) {
+            if (ports[i] == port) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof Partitions other) && Arrays.equals(ports, other.ports);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ports);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ports);
+    }
+}
@@ -8,23 +8,49 @@ public class Protocol {
 	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
 	public final static String RELOAD_TOKEN = "RELOAD";
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String STORE_CHAIN_TOKEN = "STORE_CHAIN"; // also from Dstores
+	public final static String LOCATE_TOKEN = "LOCATE";
+	public final static String STORE_EC_TOKEN = "STORE_EC";
+	public final static String STORE_DEDUP_TOKEN = "STORE_DEDUP";
+	public final static String STORE_COMPRESSED_TOKEN = "STORE_COMPRESSED";
+	public final static String LOAD_COMPRESSED_TOKEN = "LOAD_COMPRESSED";
+	public final static String SUBSCRIBE_TOKEN = "SUBSCRIBE";
+	public final static String FAULTS_TOKEN = "FAULTS"; // to Dstores, and to the Controller for one of its Dstores
+	public final static String PARTITIONS_TOKEN = "PARTITIONS"; // also from Controller
+	public final static String FOLLOW_TOKEN = "FOLLOW"; // from follower controllers
+	public final static String LIST_PAGE_TOKEN = "LIST_PAGE"; // also from Controller
 	
 	// messages sent by the Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
 	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
+	public final static String LOCATIONS_TOKEN = "LOCATIONS";
+	public final static String STORE_EC_TO_TOKEN = "STORE_EC_TO";
+	public final static String LOAD_EC_FROM_TOKEN = "LOAD_EC_FROM";
+	public final static String INVALIDATE_TOKEN = "INVALIDATE";
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
 	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+	public final static String REDIRECT_TOKEN = "REDIRECT";
+	public final static String INDEX_PUT_TOKEN = "INDEX_PUT"; // to followers
+	public final static String INDEX_REMOVE_TOKEN = "INDEX_REMOVE"; // to followers
+	public final static String INDEX_SYNC_TOKEN = "INDEX_SYNC"; // to followers
+	public final static String ERROR_OVERLOADED_TOKEN = "ERROR_OVERLOADED";
+	public final static String ERROR_UNKNOWN_DSTORE_TOKEN = "ERROR_UNKNOWN_DSTORE";
+	public final static String ERROR_FAULTS_DISABLED_TOKEN = "ERROR_FAULTS_DISABLED"; // also from Dstores
 	
 	// messages sent by Dstores
 	public final static String ACK_TOKEN = "ACK";
+	public final static String NEED_TOKEN = "NEED";
+	public final static String COMPRESSED_DATA_TOKEN = "COMPRESSED_DATA";
 	public final static String STORE_ACK_TOKEN = "STORE_ACK";
 	public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
 	public final static String JOIN_TOKEN = "JOIN";
+	public final static String STATUS_TOKEN = "STATUS";
+	public final static String INVENTORY_TOKEN = "INVENTORY";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
 }
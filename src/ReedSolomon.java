@@ -0,0 +1,256 @@
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8). A file is split into k data shards and m parity shards are
+ * computed from them, so the file can be rebuilt from any k of the k + m shards.
+ * <p>
+ * The encoding matrix is a Vandermonde matrix multiplied by the inverse of its top k x k square, which keeps the data
+ * shards unchanged (the top k rows become the identity) while any k rows are still invertible.
+ */
+public class ReedSolomon {
+
+    /**
+     * Primitive polynomial used to build the field: x^8 + x^4 + x^3 + x^2 + 1
+     */
+    private static final int GENERATOR = 0x11D;
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= GENERATOR;
+            }
+        }
+        // doubling the table saves a modulo in mul()
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+
+    /**
+     * (k + m) x k matrix: row i gives the coefficients of shard i in terms of the data shards
+     */
+    private final int[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if ((dataShards <= 0) || (parityShards < 0) || (dataShards + parityShards > 256)) {
+            throw new IllegalArgumentException("Invalid number of shards: " + dataShards + "+" + parityShards);
+        }
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int[][] vandermonde = new int[dataShards + parityShards][dataShards];
+        for (int row = 0; row < vandermonde.length; row++) {
+            for (int col = 0; col < dataShards; col++) {
+                vandermonde[row][col] = pow(row, col);
+            }
+        }
+
+        int[][] top = new int[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * @return size of each shard when a file of fileSize bytes is split into the data shards
+     */
+    public int shardSize(int fileSize) {
+        return Math.max(1, (fileSize + dataShards - 1) / dataShards);
+    }
+
+    /**
+     * Splits a file into data shards (padding the last one with zeros) and computes the parity shards
+     * @param data content of the file
+     * @return the k + m shards, all of the same size
+     */
+    public byte[][] encode(byte[] data) {
+        int shardSize = shardSize(data.length);
+        byte[][] shards = new byte[dataShards + parityShards][shardSize];
+
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            if (from < data.length) {
+                System.arraycopy(data, from, shards[i], 0, Math.min(shardSize, data.length - from));
+            }
+        }
+
+        for (int i = dataShards; i < shards.length; i++) {
+            combine(matrix[i], shards, shards[i]);
+        }
+
+        return shards;
+    }
+
+    /**
+     * Rebuilds a file from any k of its shards
+     * @param shards shards indexed by their position, with null for the ones that are missing
+     * @param fileSize size of the original file, to drop the padding
+     * @return content of the file
+     * @throws IllegalArgumentException if fewer than k shards are given
+     */
+    public byte[] decode(byte[][] shards, int fileSize) {
+        int[] present = new int[dataShards];
+        int found = 0;
+        for (int i = 0; (i < shards.length) && (found < dataShards); i++) {
+            if (shards[i] != null) {
+                present[found++] = i;
+            }
+        }
+
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards to decode, only got " + found);
+        }
+
+        int shardSize = shards[present[0]].length;
+        byte[][] dataShardsContent = new byte[dataShards][];
+
+        // the rows of the shards we have form an invertible matrix, whose inverse maps them back to the data shards
+        int[][] subMatrix = new int[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            subMatrix[i] = matrix[present[i]];
+            inputs[i] = shards[present[i]];
+        }
+        int[][] decodeMatrix = invert(subMatrix);
+
+        for (int i = 0; i < dataShards; i++) {
+            if (shards[i] != null) {
+                dataShardsContent[i] = shards[i];
+            } else {
+                dataShardsContent[i] = new byte[shardSize];
+                combine(decodeMatrix[i], inputs, dataShardsContent[i]);
+            }
+        }
+
+        byte[] data = new byte[fileSize];
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            if (from < fileSize) {
+                System.arraycopy(dataShardsContent[i], 0, data, from, Math.min(shardSize, fileSize - from));
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * output = sum of coefficients[i] * inputs[i], byte by byte
+     */
+    private static void combine(int[] coefficients, byte[][] inputs, byte[] output) {
+        for (int i = 0; i < coefficients.length; i++) {
+            int c = coefficients[i];
+            if (c == 0) {
+                continue;
+            }
+
+            byte[] input = inputs[i];
+            int logC = LOG[c];
+            for (int b = 0; b < output.length; b++) {
+                int v = input[b] & 0xFF;
+                if (v != 0) {
+                    output[b] ^= (byte) EXP[logC + LOG[v]];
+                }
+            }
+        }
+    }
+
+    private static int mul(int a, int b) {
+        if ((a == 0) || (b == 0)) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int div(int a, int b) {
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + 255 - LOG[b]];
+    }
+
+    private static int pow(int a, int n) {
+        if (n == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static int[][] multiply(int[][] a, int[][] b) {
+        int[][] result = new int[a.length][b[0].length];
+        for (int row = 0; row < a.length; row++) {
+            for (int col = 0; col < b[0].length; col++) {
+                int value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= mul(a[row][i], b[i][col]);
+                }
+                result[row][col] = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gauss-Jordan elimination over GF(2^8)
+     */
+    private static int[][] invert(int[][] m) {
+        int n = m.length;
+        int[][] work = new int[n][2 * n];
+        for (int row = 0; row < n; row++) {
+            System.arraycopy(m[row], 0, work[row], 0, n);
+            work[row][n + row] = 1;
+        }
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while ((pivot < n) && (work[pivot][col] == 0)) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+
+            int[] tmp = work[col];
+            work[col] = work[pivot];
+            work[pivot] = tmp;
+
+            int scale = work[col][col];
+            for (int i = 0; i < 2 * n; i++) {
+                work[col][i] = div(work[col][i], scale);
+            }
+
+            for (int row = 0; row < n; row++) {
+                if ((row != col) && (work[row][col] != 0)) {
+                    int factor = work[row][col];
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[row][i] ^= mul(factor, work[col][i]);
+                    }
+                }
+            }
+        }
+
+        int[][] inverse = new int[n][n];
+        for (int row = 0; row < n; row++) {
+            System.arraycopy(work[row], n, inverse[row], 0, n);
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+/**
+ * Connection over a TCP socket. Lines are read through a BufferedReader, while file content is read straight from the
+ * socket, so content must only be sent once the lines before it have been answered (e.g. after the ACK of a STORE).
+ */
+public class SocketTransport implements Transport {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    public SocketTransport(Socket socket, BufferedReader in, PrintWriter out) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void send(String line) {
+        out.println(line);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        return in.readLine();
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        socket.getOutputStream().write(data, off, len);
+    }
+
+    @Override
+    public int read(byte[] data, int off, int len) throws IOException {
+        return socket.getInputStream().readNBytes(data, off, len);
+    }
+
+    @Override
+    public boolean hasFailed() {
+        return out.checkError();
+    }
+
+    @Override
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
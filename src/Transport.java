@@ -0,0 +1,39 @@
+import java.io.IOException;
+
+/**
+ * One end of a connection, carrying protocol lines and, between clients and dstores, the content of files.
+ * ConnectionThread sends and receives through it, so that the same Controller and Dstore code can talk over sockets or,
+ * in ClusterSimulator, over a simulated network.
+ */
+public interface Transport {
+
+    /**
+     * Sends a protocol line, without waiting for it to be received
+     */
+    void send(String line);
+
+    /**
+     * @return the next line received, or null once the other end closed the connection
+     */
+    String readLine() throws IOException;
+
+    void write(byte[] data, int off, int len) throws IOException;
+
+    /**
+     * Reads len bytes, or fewer if the connection is closed first
+     * @return number of bytes read
+     */
+    int read(byte[] data, int off, int len) throws IOException;
+
+    /**
+     * @return whether sending has failed, e.g. because the other end closed the connection
+     */
+    boolean hasFailed();
+
+    /**
+     * @return port of the other end, to tell connections apart in the logs
+     */
+    int getPort();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FilePropertiesTest {
+
+    private static NetworkController.DstoreThread dstore(int port) {
+        return new NetworkController.DstoreThread(
+                new SocketTransport(new Socket(), null, new PrintWriter(OutputStream.nullOutputStream())),
+                port,
+                new FairTaskQueue()
+        );
+    }
+
+    private static List<NetworkController.DstoreThread> dstores(int n) {
+        List<NetworkController.DstoreThread> dstores = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            dstores.add(dstore(6000 + i));
+        }
+        return dstores;
+    }
+
+    @Test
+    void illegalTransitionsAreRefused() {
+        FileProperties fp = new FileProperties(10, FileProperties.FileStatus.STORE_IN_PROGRESS, dstores(2));
+
+        assertFalse(fp.transition(
+                FileProperties.FileStatus.STORE_COMPLETE,
+                FileProperties.FileStatus.REMOVE_IN_PROGRESS
+        ));
+        assertTrue(fp.storeIsInProgress());
+
+        assertTrue(fp.transition(
+                FileProperties.FileStatus.STORE_IN_PROGRESS,
+                FileProperties.FileStatus.STORE_COMPLETE
+        ));
+        assertFalse(fp.transition(
+                FileProperties.FileStatus.STORE_IN_PROGRESS,
+                FileProperties.FileStatus.STORE_COMPLETE
+        ));
+        assertTrue(fp.storeIsCompleted());
+    }
+
+    @Test
+    void dstoresAreRefusedOnceTheRemovalStarts() {
+        List<NetworkController.DstoreThread> dstores = dstores(3);
+        FileProperties fp = new FileProperties(10, FileProperties.FileStatus.STORE_COMPLETE, dstores.subList(0, 1));
+
+        assertTrue(fp.transition(
+                FileProperties.FileStatus.STORE_COMPLETE,
+                FileProperties.FileStatus.REMOVE_IN_PROGRESS
+        ));
+        assertFalse(fp.addDstore(dstores.get(1)));
+
+        assertTrue(fp.transition(
+                FileProperties.FileStatus.REMOVE_IN_PROGRESS,
+                FileProperties.FileStatus.REMOVE_COMPLETE
+        ));
+        assertFalse(fp.addDstore(dstores.get(2)));
+
+        assertEquals(List.of(dstores.get(0)), fp.getDstores());
+        assertEquals(0, dstores.get(1).getStoredFiles().get());
+        assertEquals(0, dstores.get(2).getStoredFiles().get());
+    }
+
+    @Test
+    void keepsTheDstoresInOrderPastThePackedSlots() {
+        List<NetworkController.DstoreThread> dstores = dstores(5);
+        FileProperties fp = new FileProperties(10, FileProperties.FileStatus.STORE_COMPLETE, dstores.subList(0, 3));
+
+        assertTrue(fp.addDstore(dstores.get(3)));
+        assertTrue(fp.addDstore(dstores.get(4)));
+        assertTrue(fp.removeDstore(dstores.get(1)));
+        assertFalse(fp.removeDstore(dstores.get(1)));
+
+        assertEquals(List.of(dstores.get(0), dstores.get(2), dstores.get(3), dstores.get(4)), fp.getDstores());
+        assertEquals(4, fp.getCount());
+        assertTrue(fp.storeIsCompleted());
+    }
+
+    @Test
+    void storedFilesMatchTheEntryUnderConcurrentChanges() throws Exception {
+        // more dstores than fit in the packed state, so that both representations are raced over
+        List<NetworkController.DstoreThread> dstores = dstores(6);
+        ExecutorService service = Executors.newFixedThreadPool(8);
+
+        for (int test = 0; test < 50; test++) {
+            int[] before = new int[dstores.size()];
+            for (int i = 0; i < dstores.size(); i++) {
+                before[i] = dstores.get(i).getStoredFiles().get();
+            }
+
+            FileProperties fp = new FileProperties(10, FileProperties.FileStatus.STORE_COMPLETE, List.of());
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                Random random = new Random(test * 8L + thread);
+                futures.add(service.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 1000; i++) {
+                        NetworkController.DstoreThread dstore = dstores.get(random.nextInt(dstores.size()));
+                        if (random.nextBoolean()) {
+                            fp.addDstore(dstore);
+                        } else {
+                            fp.removeDstore(dstore);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            for (int i = 0; i < dstores.size(); i++) {
+                int expected = fp.hasDstore(dstores.get(i)) ? 1 : 0;
+                assertEquals(expected, dstores.get(i).getStoredFiles().get() - before[i]);
+            }
+            assertEquals(fp.getCount(), fp.getDstores().size());
+        }
+        service.shutdown();
+    }
+}
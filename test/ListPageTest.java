@@ -0,0 +1,92 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ListPageTest {
+
+    private static NavigableMap<String, Boolean> index(String... fileNames) {
+        NavigableMap<String, Boolean> index = new TreeMap<>();
+        for (String fileName : fileNames) {
+            index.put(fileName, true);
+        }
+        return index;
+    }
+
+    private static ListPage.Page page(ListPage request, NavigableMap<String, Boolean> index) {
+        return ListPage.fromReply(request.reply(index, listed -> listed, 1000));
+    }
+
+    @Test
+    void startsAtThePrefixWhenTheCursorIsBeforeIt() {
+        NavigableMap<String, Boolean> index = index("a1", "a9", "b1", "b2", "c1");
+
+        ListPage.Page page = page(new ListPage(10, "b", "a5"), index);
+
+        assertEquals(List.of("b1", "b2"), page.files());
+        assertFalse(page.more());
+    }
+
+    @Test
+    void moreOnlyWhenThereAreFilesPastTheLimit() {
+        NavigableMap<String, Boolean> index = index("b1", "b2", "c1");
+
+        ListPage.Page exact = page(new ListPage(2, "b", null), index);
+        assertEquals(List.of("b1", "b2"), exact.files());
+        assertFalse(exact.more());
+
+        index.put("b3", true);
+        ListPage.Page full = page(new ListPage(2, "b", null), index);
+        assertEquals(List.of("b1", "b2"), full.files());
+        assertTrue(full.more());
+
+        ListPage.Page last = page(new ListPage(2, "b", full.last()), index);
+        assertEquals(List.of("b3"), last.files());
+        assertFalse(last.more());
+    }
+
+    @Test
+    void skipsTheFilesThatAreNotListed() {
+        NavigableMap<String, Boolean> index = index("f1", "f3");
+        index.put("f2", false);
+
+        assertEquals("LIST_PAGE END f1 f3", new ListPage(2, "", null).reply(index, listed -> listed, 1000));
+    }
+
+    @Test
+    void mergesPartitionsHoldingMoreThanOnePage() {
+        List<NavigableMap<String, Boolean>> partitions = List.of(new TreeMap<>(), new TreeMap<>(), new TreeMap<>());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            String fileName = String.format("file%02d", i);
+            partitions.get(Math.floorMod(fileName.hashCode(), partitions.size())).put(fileName, true);
+            expected.add(fileName);
+        }
+
+        List<String> listed = new ArrayList<>();
+        String after = null;
+        int pages = 0;
+        boolean more = true;
+        while (more) {
+            ListPage request = new ListPage(10, "file", after);
+            List<ListPage.Page> replies = new ArrayList<>();
+            for (NavigableMap<String, Boolean> partition : partitions) {
+                replies.add(page(request, partition));
+            }
+
+            ListPage.Page merged = request.merge(replies);
+            assertTrue(merged.files().size() <= 10);
+            listed.addAll(merged.files());
+            after = merged.last();
+            more = merged.more();
+            pages++;
+        }
+
+        assertEquals(expected, listed);
+        assertEquals(3, pages);
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReedSolomonTest {
+
+    @Test
+    void dataShardsAreTheFileItself() {
+        ReedSolomon codec = new ReedSolomon(3, 2);
+        byte[] data = "erasure coded".getBytes();
+
+        byte[][] shards = codec.encode(data);
+
+        assertEquals(5, shards.length);
+        assertEquals(codec.shardSize(data.length), shards[0].length);
+        assertEquals('e', shards[0][0]);
+        assertEquals('r', shards[1][0]);
+    }
+
+    @Test
+    void decodesFromAnyKShards() {
+        Random random = new Random(42);
+
+        for (int test = 0; test < 100; test++) {
+            int k = 1 + random.nextInt(6);
+            int m = random.nextInt(4);
+            ReedSolomon codec = new ReedSolomon(k, m);
+
+            byte[] data = new byte[random.nextInt(5000)];
+            random.nextBytes(data);
+            byte[][] shards = codec.encode(data);
+
+            // lose m random shards
+            List<Integer> positions = new ArrayList<>();
+            for (int i = 0; i < k + m; i++) {
+                positions.add(i);
+            }
+            Collections.shuffle(positions, random);
+            for (int i = 0; i < m; i++) {
+                shards[positions.get(i)] = null;
+            }
+
+            assertArrayEquals(data, codec.decode(shards, data.length));
+        }
+    }
+
+    @Test
+    void failsWithFewerThanKShards() {
+        ReedSolomon codec = new ReedSolomon(2, 1);
+        byte[][] shards = codec.encode(new byte[]{1, 2, 3});
+        shards[0] = null;
+        shards[2] = null;
+
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(shards, 3));
+    }
+}